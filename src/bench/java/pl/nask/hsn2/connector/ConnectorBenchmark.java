@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.NameValuePair;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link CuckooRESTConnector} against {@link FakeCuckooServer} running in the same JVM: task submission,
+ * task view and streamed download of a large report. Every benchmark runs in both throughput (requests/s) and sample
+ * time (latency percentiles, p0.99 among them) modes, bytes read from reports are counted as an extra result. The
+ * nested classes run the same benchmarks with 1, 8 and 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public abstract class ConnectorBenchmark {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	@Param("10")
+	private int reportMb;
+
+	private FakeCuckooServer server;
+	private CuckooRESTConnector connector;
+	private long taskId;
+
+	/**
+	 * Bytes copied from report streams, reported per second and in total.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters
+	public static class Transfer {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public final void reset() {
+			bytes = 0;
+		}
+	}
+
+	@Threads(1)
+	public static class OneThread extends ConnectorBenchmark {
+	}
+
+	@Threads(8)
+	public static class EightThreads extends ConnectorBenchmark {
+	}
+
+	@Threads(64)
+	public static class SixtyFourThreads extends ConnectorBenchmark {
+	}
+
+	@Setup
+	public final void setup() throws IOException, CuckooException {
+		Map<String, String> options = new HashMap<>();
+		// analysis finishes at once, so reports are available for the first task
+		options.put("analysis", "fixed:0");
+		options.put("machines", "64");
+		options.put("threads", "96");
+		options.put("reportBytes", String.valueOf(reportMb * 1024L * 1024L));
+		server = new FakeCuckooServer(options);
+		connector = new CuckooRESTConnector(server.start(0));
+		taskId = connector.sendURL("http://bench.example.com/", Collections.<NameValuePair> emptySet());
+	}
+
+	@TearDown
+	public final void tearDown() {
+		server.stop();
+	}
+
+	@Benchmark
+	public final long submit() throws CuckooException {
+		return connector.sendURL("http://bench.example.com/", Collections.<NameValuePair> emptySet());
+	}
+
+	@Benchmark
+	public final Object viewTask() throws CuckooException {
+		return connector.getTaskInfo(taskId);
+	}
+
+	@Benchmark
+	public final long downloadReport(Transfer transfer) throws CuckooException, IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long copied = 0;
+		try (CuckooConnection connection = connector.getJsonReportAsStream(taskId)) {
+			InputStream in = connection.getBodyAsInputStream();
+			for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+				copied += read;
+			}
+		}
+		transfer.bytes += copied;
+		return copied;
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.task.DaemonThreadFactory;
+import pl.nask.hsn2.task.SyntheticReport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for Cuckoo API, implements the calls {@link CuckooRESTConnector} makes. Tasks are queued for a limited
+ * number of simulated machines, each analysis takes a time drawn from the configured distribution. Responses can be
+ * delayed and requests can fail with given probabilities.
+ * <p>
+ * Options (key=value): machines, analysis (e.g. fixed:20000, uniform:10000-60000, exp:30000, in milliseconds),
+ * reportBytes, htmlBytes, pcapBytes, screenshotBytes, errorRate, slowRate, slowMillis, threads.
+ */
+public class FakeCuckooServer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(FakeCuckooServer.class);
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	static {
+		// small responses would otherwise wait for delayed ACK, adding 40 ms to every call
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final Map<String, String> options;
+	private final Distribution analysis;
+	private final int machines;
+	private final long pcapBytes;
+	private final long screenshotBytes;
+	private final long htmlBytes;
+	private final double errorRate;
+	private final double slowRate;
+	private final long slowMillis;
+
+	private final ConcurrentNavigableMap<Long, FakeTask> tasks = new ConcurrentSkipListMap<>();
+	private final PriorityQueue<Long> machineFreeAt = new PriorityQueue<>();
+	private final AtomicLong lastTaskId = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private File reportFile;
+	private HttpServer server;
+
+	public FakeCuckooServer(Map<String, String> options) {
+		this.options = options;
+		analysis = Distribution.parse(option("analysis", "uniform:5000-15000"));
+		machines = Integer.parseInt(option("machines", "10"));
+		pcapBytes = Long.parseLong(option("pcapBytes", "1048576"));
+		screenshotBytes = Long.parseLong(option("screenshotBytes", "524288"));
+		htmlBytes = Long.parseLong(option("htmlBytes", "262144"));
+		errorRate = Double.parseDouble(option("errorRate", "0"));
+		slowRate = Double.parseDouble(option("slowRate", "0"));
+		slowMillis = Long.parseLong(option("slowMillis", "5000"));
+		for (int i = 0; i < machines; i++) {
+			machineFreeAt.add(0L);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = parseOptions(args);
+		FakeCuckooServer server = new FakeCuckooServer(options);
+		System.out.println("Fake Cuckoo API: " + server.start(Integer.parseInt(server.option("port", "8090"))));
+	}
+
+	public static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new TreeMap<>();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator > 0) {
+				options.put(arg.substring(0, separator), arg.substring(separator + 1));
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * Starts the server, port 0 means any free port.
+	 *
+	 * @return URL of the API
+	 */
+	public final String start(int port) throws IOException {
+		File dir = Files.createTempDirectory("fake-cuckoo").toFile();
+		dir.deleteOnExit();
+		int signatures = Integer.parseInt(option("signatures", "200"));
+		SyntheticReport.writeRatings(dir, signatures).deleteOnExit();
+		reportFile = SyntheticReport.write(dir, Long.parseLong(option("reportBytes", "1048576")), signatures,
+				Integer.parseInt(option("dataPerSignature", "100")), Integer.parseInt(option("processes", "50")));
+		reportFile.deleteOnExit();
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.setExecutor(Executors.newFixedThreadPool(Integer.parseInt(option("threads", "32")),
+				new DaemonThreadFactory("fake-cuckoo")));
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					dispatch(exchange);
+				} catch (RuntimeException e) {
+					LOGGER.error("Fake Cuckoo failed", e);
+					respond(exchange, 500, "{\"message\": \"" + e + "\"}");
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		String url = "http://127.0.0.1:" + server.getAddress().getPort();
+		LOGGER.info("Fake Cuckoo API started: {}, options: {}", url, options);
+		return url;
+	}
+
+	public final void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * Path of the ratings file matching generated reports.
+	 */
+	public final File getRatingsFile() {
+		return new File(reportFile.getParentFile(), "ratings.conf");
+	}
+
+	public final long getRequests() {
+		return requests.get();
+	}
+
+	public final long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	public final long getSubmittedTasks() {
+		return lastTaskId.get();
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private void dispatch(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String[] path = exchange.getRequestURI().getPath().split("/");
+		// request body is read before anything else, as a real server would
+		IOUtils.copy(exchange.getRequestBody(), NullOutputStream.NULL_OUTPUT_STREAM);
+		if (slowRate > 0 && random.nextDouble() < slowRate) {
+			sleep(slowMillis);
+		}
+		if (errorRate > 0 && random.nextDouble() < errorRate) {
+			injectedErrors.incrementAndGet();
+			respond(exchange, 500, "{\"message\": \"Injected error\"}");
+			return;
+		}
+		String call = path.length > 2 ? path[1] + "/" + path[2] : "";
+		switch (call) {
+		case "tasks/create":
+			respond(exchange, 200, new JSONObject().put("task_id", createTask()).toString());
+			break;
+		case "tasks/view":
+			FakeTask task = tasks.get(Long.valueOf(path[3]));
+			if (task == null) {
+				respond(exchange, 404, "{\"message\": \"Task not found\"}");
+			} else {
+				respond(exchange, 200, new JSONObject().put("task", task.toJson()).toString());
+			}
+			break;
+		case "tasks/list":
+			respond(exchange, 200, listTasks(Integer.parseInt(path[3]), path.length > 4 ? Integer.parseInt(path[4]) : 0));
+			break;
+		case "tasks/report":
+			if ("html".equals(path.length > 4 ? path[4] : "json")) {
+				respondRandom(exchange, htmlBytes);
+			} else {
+				respondFile(exchange, reportFile);
+			}
+			break;
+		case "pcap/get":
+			respondRandom(exchange, pcapBytes);
+			break;
+		case "tasks/screenshots":
+			respondRandom(exchange, screenshotBytes);
+			break;
+		case "tasks/delete":
+			tasks.remove(Long.valueOf(path[3]));
+			respond(exchange, 200, "{\"status\": \"OK\"}");
+			break;
+		case "cuckoo/status":
+			respond(exchange, 200, status());
+			break;
+		default:
+			respond(exchange, 404, "{\"message\": \"Unknown call\"}");
+		}
+	}
+
+	/**
+	 * Task starts when a machine is free, so its times are known at submission.
+	 */
+	private long createTask() {
+		long now = System.currentTimeMillis();
+		long startAt;
+		long doneAt;
+		synchronized (machineFreeAt) {
+			startAt = Math.max(now, machineFreeAt.poll());
+			doneAt = startAt + analysis.sample(ThreadLocalRandom.current());
+			machineFreeAt.add(doneAt);
+		}
+		long id = lastTaskId.incrementAndGet();
+		tasks.put(id, new FakeTask(id, now, startAt, doneAt));
+		return id;
+	}
+
+	/**
+	 * Newest tasks first, like Cuckoo lists them.
+	 */
+	private String listTasks(int limit, int offset) {
+		JSONArray list = new JSONArray();
+		int skipped = 0;
+		for (FakeTask task : tasks.descendingMap().values()) {
+			if (list.length() >= limit) {
+				break;
+			} else if (skipped < offset) {
+				skipped++;
+			} else {
+				list.put(task.toJson());
+			}
+		}
+		return new JSONObject().put("tasks", list).toString();
+	}
+
+	private String status() {
+		long now = System.currentTimeMillis();
+		int pending = 0;
+		int running = 0;
+		int reported = 0;
+		for (FakeTask task : tasks.values()) {
+			String state = task.getStatus(now);
+			if ("pending".equals(state)) {
+				pending++;
+			} else if ("running".equals(state)) {
+				running++;
+			} else {
+				reported++;
+			}
+		}
+		JSONObject tasksStatus = new JSONObject().put("total", tasks.size()).put("pending", pending)
+				.put("running", running).put("reported", reported);
+		JSONObject machinesStatus = new JSONObject().put("total", machines).put("available",
+				Math.max(0, machines - running));
+		return new JSONObject().put("tasks", tasksStatus).put("machines", machinesStatus).toString();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	private static void respondFile(HttpExchange exchange, File file) throws IOException {
+		exchange.sendResponseHeaders(200, file.length());
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			IOUtils.copyLarge(in, exchange.getResponseBody());
+		}
+	}
+
+	private static void respondRandom(HttpExchange exchange, long size) throws IOException {
+		exchange.sendResponseHeaders(200, size);
+		byte[] chunk = new byte[CHUNK_SIZE];
+		new Random(size).nextBytes(chunk);
+		OutputStream out = exchange.getResponseBody();
+		for (long left = size; left > 0; left -= chunk.length) {
+			out.write(chunk, 0, (int) Math.min(chunk.length, left));
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class FakeTask {
+		private final long id;
+		private final long addedAt;
+		private final long startAt;
+		private final long doneAt;
+
+		FakeTask(long id, long addedAt, long startAt, long doneAt) {
+			this.id = id;
+			this.addedAt = addedAt;
+			this.startAt = startAt;
+			this.doneAt = doneAt;
+		}
+
+		String getStatus(long now) {
+			if (now < startAt) {
+				return "pending";
+			}
+			return now < doneAt ? "running" : "reported";
+		}
+
+		JSONObject toJson() {
+			long now = System.currentTimeMillis();
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			JSONObject json = new JSONObject().put("id", id).put("status", getStatus(now))
+					.put("added_on", format.format(new Date(addedAt)));
+			if (now >= startAt) {
+				json.put("started_on", format.format(new Date(startAt)));
+			}
+			if (now >= doneAt) {
+				json.put("completed_on", format.format(new Date(doneAt)));
+			}
+			return json;
+		}
+	}
+
+	/**
+	 * Analysis duration distribution: fixed:MILLIS, uniform:MIN-MAX or exp:MEAN.
+	 */
+	static final class Distribution {
+		private final String type;
+		private final long a;
+		private final long b;
+
+		private Distribution(String type, long a, long b) {
+			this.type = type;
+			this.a = a;
+			this.b = b;
+		}
+
+		static Distribution parse(String spec) {
+			String[] parts = spec.split(":", 2);
+			String[] values = parts.length > 1 ? parts[1].split("-") : new String[] { parts[0] };
+			String type = parts.length > 1 ? parts[0] : "fixed";
+			long a = Long.parseLong(values[0]);
+			long b = values.length > 1 ? Long.parseLong(values[1]) : a;
+			if (!"fixed".equals(type) && !"uniform".equals(type) && !"exp".equals(type)) {
+				throw new IllegalArgumentException("Unknown distribution: " + spec);
+			}
+			return new Distribution(type, a, b);
+		}
+
+		long sample(Random random) {
+			switch (type) {
+			case "uniform":
+				return a + (long) (random.nextDouble() * (b - a));
+			case "exp":
+				return (long) (-a * Math.log(1 - random.nextDouble()));
+			default:
+				return a;
+			}
+		}
+	}
+}
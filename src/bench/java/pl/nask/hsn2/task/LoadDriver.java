@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mockit.Deencapsulation;
+import mockit.Invocation;
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import pl.nask.hsn2.ParameterException;
+import pl.nask.hsn2.TaskContext;
+import pl.nask.hsn2.connector.CuckooCluster;
+import pl.nask.hsn2.connector.CuckooRESTConnector;
+import pl.nask.hsn2.connector.FakeCuckooServer;
+import pl.nask.hsn2.connector.SubmissionGate;
+import pl.nask.hsn2.metrics.MetricsEndpoint;
+import pl.nask.hsn2.wrappers.ObjectDataWrapper;
+import pl.nask.hsn2.wrappers.ParametersWrapper;
+
+/**
+ * Runs many {@link CuckooTask}s through {@link CuckooServiceTaskFactory} against {@link FakeCuckooServer} and reports
+ * throughput, latency percentiles and thread usage. HSN2 job context, parameters and object data are replaced with
+ * JMockit mock-ups, so the driver has to run with JMockit as a java agent.
+ * <p>
+ * Options (key=value): tasks, workers (HSN2 task threads), completionThreads (0 - tasks poll Cuckoo on their own),
+ * queueDepth, mode (url or file), sampleBytes, metricsPort (0 - no metrics endpoint), reportSpillKb (0 - reports not
+ * spilled), storeEncoding, task.NAME (task parameter, e.g. task.timeout=10, task.save_pcap=true) and options of
+ * {@link FakeCuckooServer}.
+ */
+public final class LoadDriver {
+	private static final long JOB_ID = 1;
+	private static final String TASK_PARAM_PREFIX = "task.";
+	private static final String[] POOL_PREFIXES = { "load-worker", "cuckoo-", "fake-cuckoo" };
+
+	private static final Map<Object, Integer> OBJECT_IDS = new ConcurrentHashMap<>();
+	private static final Map<String, String> TASK_PARAMS = new TreeMap<>();
+	private static final AtomicLong STORED_BYTES = new AtomicLong();
+	private static final AtomicLong STORED_OBJECTS = new AtomicLong();
+	private static final AtomicInteger NEXT_OBJECT = new AtomicInteger();
+	private static String mode;
+	private static int sampleBytes;
+
+	private LoadDriver() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = FakeCuckooServer.parseOptions(args);
+		int tasks = intOption(options, "tasks", 200);
+		int workers = intOption(options, "workers", 50);
+		int completionThreads = intOption(options, "completionThreads", 4);
+		int queueDepth = intOption(options, "queueDepth", 0);
+		int metricsPort = intOption(options, "metricsPort", 0);
+		int reportSpillKb = intOption(options, "reportSpillKb", 0);
+		String storeEncoding = stringOption(options, "storeEncoding", StoredEncoding.NONE);
+		mode = stringOption(options, "mode", "url");
+		sampleBytes = intOption(options, "sampleBytes", 256 * 1024);
+		TASK_PARAMS.put("timeout", "10");
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			if (option.getKey().startsWith(TASK_PARAM_PREFIX)) {
+				TASK_PARAMS.put(option.getKey().substring(TASK_PARAM_PREFIX.length()), option.getValue());
+			}
+		}
+
+		FakeCuckooServer server = new FakeCuckooServer(options);
+		String url = server.start(0);
+		CuckooRESTConnector.setCuckooURL(url);
+		if (queueDepth > 0) {
+			CuckooCluster.configure(Collections.singletonList(url), CuckooCluster.DEFAULT_REFRESH_SECS,
+					CuckooCluster.DEFAULT_QUARANTINE_SECS);
+		}
+		SubmissionGate.configure(queueDepth);
+		Rating.configure(server.getRatingsFile());
+		ReportSpill.configure(reportSpillKb * 1024L, null);
+		StoredEncoding.configure(storeEncoding, StoredEncoding.DEFAULT_LEVEL);
+		CuckooCompletionReactor reactor = completionThreads > 0 ? new CuckooCompletionReactor(completionThreads) : null;
+		CuckooServiceTaskFactory.prepereForAllThreads(false, reactor, null);
+		installMockUps();
+		if (metricsPort > 0) {
+			MetricsEndpoint.start(metricsPort);
+		}
+
+		System.out.printf("Running %d %s tasks on %d workers, completion threads: %d, task parameters: %s%n", tasks,
+				mode, workers, completionThreads, TASK_PARAMS);
+		ThreadSampler sampler = new ThreadSampler();
+		ScheduledExecutorService sampling = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+				"load-sampler"));
+		sampling.scheduleAtFixedRate(sampler, 0, 1, TimeUnit.SECONDS);
+
+		ExecutorService pool = Executors.newFixedThreadPool(workers, new DaemonThreadFactory("load-worker"));
+		final CuckooServiceTaskFactory factory = new CuckooServiceTaskFactory();
+		List<Future<Long>> results = new ArrayList<>(tasks);
+		long startedAt = System.nanoTime();
+		for (int i = 0; i < tasks; i++) {
+			results.add(pool.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long taskStart = System.nanoTime();
+					factory.newTask(newInstance(TaskContext.class), newInstance(ParametersWrapper.class),
+							newInstance(ObjectDataWrapper.class)).process();
+					return System.nanoTime() - taskStart;
+				}
+			}));
+		}
+		long[] latencies = new long[tasks];
+		int failed = 0;
+		for (int i = 0; i < tasks; i++) {
+			try {
+				latencies[i] = results.get(i).get();
+			} catch (ExecutionException e) {
+				failed++;
+				latencies[i] = -1;
+				System.out.println("Task failed: " + e.getCause());
+			}
+		}
+		long elapsed = System.nanoTime() - startedAt;
+		sampling.shutdownNow();
+		pool.shutdownNow();
+		if (reactor != null) {
+			reactor.shutdown();
+		}
+
+		report(tasks, failed, elapsed, latencies, server, sampler);
+		server.stop();
+	}
+
+	private static void report(int tasks, int failed, long elapsed, long[] latencies, FakeCuckooServer server,
+			ThreadSampler sampler) {
+		long[] succeeded = new long[tasks - failed];
+		int n = 0;
+		for (long latency : latencies) {
+			if (latency >= 0) {
+				succeeded[n++] = latency;
+			}
+		}
+		Arrays.sort(succeeded);
+		double minutes = elapsed / (double) TimeUnit.MINUTES.toNanos(1);
+		System.out.printf("Tasks: %d done, %d failed in %.1f s, %.1f tasks/min%n", tasks - failed, failed,
+				minutes * 60, (tasks - failed) / minutes);
+		System.out.printf("Latency (s): p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n", percentile(succeeded, 50),
+				percentile(succeeded, 90), percentile(succeeded, 99), percentile(succeeded, 100));
+		System.out.printf("Cuckoo API: %d requests, %d tasks submitted, %d injected errors%n", server.getRequests(),
+				server.getSubmittedTasks(), server.getInjectedErrors());
+		System.out.printf("Data store: %d objects, %d bytes%n", STORED_OBJECTS.get(), STORED_BYTES.get());
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		System.out.printf("Threads: peak %d, live %d, started %d%n", threads.getPeakThreadCount(),
+				threads.getThreadCount(), threads.getTotalStartedThreadCount());
+		System.out.println("Pool threads (max seen): " + sampler.maxPerPrefix);
+		System.out.println("Worker states (average of samples): " + sampler.averageWorkerStates());
+	}
+
+	private static double percentile(long[] sorted, int percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1e9;
+	}
+
+	private static <T> T newInstance(Class<T> type) {
+		// constructors of HSN2 framework classes need a running framework, the mock-ups do not use any fields
+		T instance = Deencapsulation.newUninitializedInstance(type);
+		OBJECT_IDS.put(instance, NEXT_OBJECT.incrementAndGet());
+		return instance;
+	}
+
+	private static void installMockUps() {
+		new MockUp<TaskContext>() {
+			@Mock
+			long getJobId() {
+				return JOB_ID;
+			}
+
+			@Mock
+			void addAttribute(String name, String value) {
+				// attributes are not checked
+			}
+
+			@Mock
+			void addAttribute(String name, int value) {
+				// phase durations are not checked
+			}
+
+			@Mock
+			void addReference(String name, long refId) {
+				// references are not checked
+			}
+
+			@Mock
+			long saveInDataStore(InputStream stream) throws IOException {
+				STORED_BYTES.addAndGet(IOUtils.copyLarge(stream, NullOutputStream.NULL_OUTPUT_STREAM));
+				return STORED_OBJECTS.incrementAndGet();
+			}
+
+			@Mock
+			InputStream getFileAsInputStream(long referenceId) {
+				byte[] sample = new byte[sampleBytes];
+				new Random(referenceId).nextBytes(sample);
+				return new ByteArrayInputStream(sample);
+			}
+		};
+		new MockUp<ParametersWrapper>() {
+			@Mock
+			boolean getBoolean(String name, boolean defaultValue) {
+				String value = TASK_PARAMS.get(name);
+				return value == null ? defaultValue : Boolean.parseBoolean(value);
+			}
+
+			@Mock
+			int getInt(String name, int defaultValue) {
+				String value = TASK_PARAMS.get(name);
+				return value == null ? defaultValue : Integer.parseInt(value);
+			}
+
+			@Mock
+			String get(String name) throws ParameterException {
+				return TASK_PARAMS.get(name);
+			}
+
+			@Mock
+			boolean hasParam(String name) {
+				return TASK_PARAMS.containsKey(name);
+			}
+		};
+		new MockUp<ObjectDataWrapper>() {
+			@Mock
+			Long getReferenceId(Invocation invocation, String name) {
+				return "file".equals(mode) && "content".equals(name) ? Long.valueOf(objectId(invocation)) : null;
+			}
+
+			@Mock
+			String getString(Invocation invocation, String name) {
+				return "filename".equals(name) ? "sample-" + objectId(invocation) + ".exe" : null;
+			}
+
+			@Mock
+			String getUrlForProcessing(Invocation invocation) {
+				// every object gets its own URL, identical ones would share one Cuckoo analysis
+				return "http://load-" + objectId(invocation) + ".example.com/";
+			}
+		};
+	}
+
+	private static int objectId(Invocation invocation) {
+		return OBJECT_IDS.get(invocation.getInvokedInstance());
+	}
+
+	private static int intOption(Map<String, String> options, String name, int defaultValue) {
+		return Integer.parseInt(stringOption(options, name, String.valueOf(defaultValue)));
+	}
+
+	private static String stringOption(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Counts threads of the service pools and states of HSN2 worker threads once a second.
+	 */
+	private static final class ThreadSampler implements Runnable {
+		private final Map<String, Integer> maxPerPrefix = new TreeMap<>();
+		private final Map<Thread.State, Long> workerStates = new EnumMap<>(Thread.State.class);
+		private int samples;
+
+		@Override
+		public synchronized void run() {
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			Map<String, Integer> perPrefix = new TreeMap<>();
+			for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+				if (info == null) {
+					continue;
+				}
+				String prefix = poolOf(info.getThreadName());
+				Integer count = perPrefix.get(prefix);
+				perPrefix.put(prefix, count == null ? 1 : count + 1);
+				if (info.getThreadName().startsWith("load-worker")) {
+					Long states = workerStates.get(info.getThreadState());
+					workerStates.put(info.getThreadState(), states == null ? 1 : states + 1);
+				}
+			}
+			for (Map.Entry<String, Integer> entry : perPrefix.entrySet()) {
+				Integer max = maxPerPrefix.get(entry.getKey());
+				if (max == null || max < entry.getValue()) {
+					maxPerPrefix.put(entry.getKey(), entry.getValue());
+				}
+			}
+			samples++;
+		}
+
+		synchronized Map<Thread.State, String> averageWorkerStates() {
+			Map<Thread.State, String> average = new EnumMap<>(Thread.State.class);
+			for (Map.Entry<Thread.State, Long> entry : workerStates.entrySet()) {
+				average.put(entry.getKey(), String.format("%.1f", entry.getValue() / (double) Math.max(1, samples)));
+			}
+			return average;
+		}
+
+		private static String poolOf(String threadName) {
+			for (String prefix : POOL_PREFIXES) {
+				if (threadName.startsWith(prefix)) {
+					// pool name without thread number
+					return threadName.substring(0, threadName.lastIndexOf('-'));
+				}
+			}
+			return "other";
+		}
+	}
+}
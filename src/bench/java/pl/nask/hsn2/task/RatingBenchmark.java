@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rating lookups of known signature names (names are new strings, as if read from a report) and of a missing one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RatingBenchmark {
+	@Param({ "100", "10000" })
+	private int signatures;
+
+	private File dir;
+	private String[] names;
+	private int next;
+
+	@Setup
+	public final void setup() throws IOException {
+		dir = Files.createTempDirectory("cuckoo-bench").toFile();
+		Rating.configure(SyntheticReport.writeRatings(dir, signatures));
+		names = new String[signatures];
+		for (int i = 0; i < signatures; i++) {
+			names[i] = new String(SyntheticReport.signatureName(i));
+		}
+	}
+
+	@TearDown
+	public final void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Benchmark
+	public final double getValue() {
+		next = (next + 1) % names.length;
+		return Rating.getValue(names[next]);
+	}
+
+	@Benchmark
+	public final int getIdMissing() {
+		return Rating.getTable().getId("missing_signature");
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing and rating of synthetic JSON reports. Run with {@code -prof gc} to get allocation rate along with
+ * throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReportBenchmark {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	@Param({ "1", "50", "500" })
+	private int reportMb;
+
+	@Param("200")
+	private int signatures;
+
+	@Param("100")
+	private int dataPerSignature;
+
+	@Param("50")
+	private int processes;
+
+	private File dir;
+	private File report;
+
+	@Setup
+	public final void setup() throws IOException {
+		dir = Files.createTempDirectory("cuckoo-bench").toFile();
+		Rating.configure(SyntheticReport.writeRatings(dir, signatures));
+		report = SyntheticReport.write(dir, reportMb * 1024L * 1024L, signatures, dataPerSignature, processes);
+	}
+
+	@TearDown
+	public final void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	/**
+	 * Signature extraction alone.
+	 */
+	@Benchmark
+	public final SignatureProcessor processSignatures() throws IOException {
+		SignatureProcessor processor = new SignatureProcessor();
+		try (InputStream in = new BufferedInputStream(new FileInputStream(report), BUFFER_SIZE)) {
+			processor.process(in);
+		}
+		return processor;
+	}
+
+	/**
+	 * Everything processDataAndCalculateRating does with a downloaded report: extraction, classification, reason and
+	 * top processes. Transport and data store are left out.
+	 */
+	@Benchmark
+	public final void rateReport(Blackhole blackhole) throws IOException {
+		SignatureProcessor processor = processSignatures();
+		blackhole.consume(CuckooTask.classify(processor.getTotalScore()));
+		blackhole.consume(processor.getReason());
+		blackhole.consume(CuckooTask.topProcessesAsJson(processor.getTopProcesses()));
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Writes synthetic Cuckoo JSON reports (and matching ratings) for benchmarks. Signatures are written until the report
+ * reaches the requested size; their names, number of data entries and process ids are drawn from the given counts.
+ */
+public final class SyntheticReport {
+	private static final String[] APIS = { "NtCreateFile", "NtWriteFile", "RegSetValueExA", "CreateRemoteThread",
+			"NtAllocateVirtualMemory", "InternetOpenUrlA" };
+
+	private SyntheticReport() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	public static String signatureName(int i) {
+		return "synthetic_signature_" + i;
+	}
+
+	/**
+	 * Writes ratings for all synthetic signatures.
+	 */
+	public static File writeRatings(File dir, int signatures) throws IOException {
+		File file = new File(dir, "ratings.conf");
+		Random random = new Random(signatures);
+		try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			for (int i = 0; i < signatures; i++) {
+				writer.write(signatureName(i) + "=" + (random.nextInt(200) / 100.0) + "\n");
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * @param targetBytes
+	 *            report is at least this large
+	 * @param signatures
+	 *            number of distinct signature names
+	 * @param dataPerSignature
+	 *            maximum number of data entries of one signature
+	 * @param processes
+	 *            number of distinct process ids
+	 */
+	public static File write(File dir, long targetBytes, int signatures, int dataPerSignature, int processes)
+			throws IOException {
+		File file = new File(dir, "report-" + targetBytes + ".json");
+		Random random = new Random(targetBytes);
+		try (CountingWriter out = new CountingWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+			out.write("{\"info\": {\"id\": 1, \"category\": \"file\", \"package\": \"exe\"},\n\"signatures\": [");
+			for (int n = 0; out.count < targetBytes; n++) {
+				if (n > 0) {
+					out.write(",");
+				}
+				writeSignature(out, random, signatures, dataPerSignature, processes);
+			}
+			out.write("],\n\"behavior\": {\"summary\": {\"files\": [], \"keys\": [], \"mutexes\": []}}}\n");
+		}
+		return file;
+	}
+
+	private static void writeSignature(Writer out, Random random, int signatures, int dataPerSignature, int processes)
+			throws IOException {
+		String name = signatureName(random.nextInt(signatures));
+		out.write("\n{\"families\": [\"synthetic\"], \"description\": \"Synthetic signature " + name
+				+ "\", \"severity\": " + (1 + random.nextInt(3)) + ", \"references\": [\"http://example.com/" + name
+				+ "\"], \"alert\": false, \"data\": [");
+		int entries = 1 + random.nextInt(dataPerSignature);
+		for (int i = 0; i < entries; i++) {
+			if (i > 0) {
+				out.write(", ");
+			}
+			if (random.nextInt(10) == 0) {
+				out.write("{\"file\": \"C:\\\\Windows\\\\Temp\\\\" + random.nextInt(100000) + ".tmp\"}");
+			} else {
+				String api = APIS[random.nextInt(APIS.length)];
+				out.write("{\"process_id\": " + (1000 + random.nextInt(processes)) + ", \"signs\": [{\"type\": \"call\", "
+						+ "\"value\": {\"category\": \"system\", \"api\": \"" + api + "\", \"return\": \"0x00000000\", "
+						+ "\"arguments\": [{\"name\": \"Handle\", \"value\": \"0x" + Integer.toHexString(random.nextInt())
+						+ "\"}], \"status\": true}}]}");
+			}
+		}
+		out.write("], \"name\": \"" + name + "\"}");
+	}
+
+	/**
+	 * Counts characters written, reports are ASCII so it is also their size in bytes.
+	 */
+	private static final class CountingWriter extends BufferedWriter {
+		private long count;
+
+		CountingWriter(Writer out) {
+			super(out);
+		}
+
+		@Override
+		public void write(String str) throws IOException {
+			super.write(str);
+			count += str.length();
+		}
+	}
+}
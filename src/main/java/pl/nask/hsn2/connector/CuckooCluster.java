@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.connector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.task.DaemonThreadFactory;
+
+/**
+ * Keeps the list of Cuckoo API nodes and their load. Load of every node (pending and running tasks, available
+ * machines) is refreshed periodically from its status, new tasks are submitted to the least loaded healthy node.
+ * Nodes which fail are quarantined for a while and probed again by the refresh.
+ */
+public final class CuckooCluster {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CuckooCluster.class);
+
+	public static final long DEFAULT_REFRESH_SECS = 15;
+	public static final long DEFAULT_QUARANTINE_SECS = 60;
+
+	private static List<Node> nodes = Collections.emptyList();
+	private static long quarantineMillis = TimeUnit.SECONDS.toMillis(DEFAULT_QUARANTINE_SECS);
+	private static ScheduledExecutorService refresher;
+	private static int nextNode = 0;
+
+	/**
+	 * Cuckoo API node with its last known load.
+	 */
+	private static final class Node {
+		private final String url;
+		private int load;
+		private int pending;
+		private int availableMachines;
+		private int submitted;
+		private long quarantinedUntil;
+
+		Node(String url) {
+			this.url = url;
+		}
+
+		boolean isQuarantined(long now) {
+			return quarantinedUntil > now;
+		}
+
+		int expectedLoad() {
+			return load + submitted;
+		}
+
+		int freeSlots(int queueDepth) {
+			return Math.max(0, queueDepth + availableMachines - pending - submitted);
+		}
+	}
+
+	private CuckooCluster() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	/**
+	 * Sets Cuckoo API nodes and starts refreshing their load.
+	 *
+	 * @param refreshSecs
+	 *            interval of load refresh
+	 * @param quarantineSecs
+	 *            time for which failed node gets no new tasks
+	 */
+	public static synchronized void configure(List<String> urls, long refreshSecs, long quarantineSecs) {
+		setNodes(urls, TimeUnit.SECONDS.toMillis(quarantineSecs));
+		if (refresher != null) {
+			refresher.shutdownNow();
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cuckoo-cluster"));
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refreshLoad();
+			}
+		}, 0, refreshSecs, TimeUnit.SECONDS);
+		LOGGER.info("Cuckoo cluster: {}, load refreshed every {} s, failed nodes quarantined for {} s",
+				new Object[] { urls, refreshSecs, quarantineSecs });
+	}
+
+	/**
+	 * Sets Cuckoo API nodes without refreshing their load.
+	 */
+	static synchronized void setNodes(List<String> urls, long quarantine) {
+		List<Node> configured = new ArrayList<>();
+		for (String url : urls) {
+			configured.add(new Node(url));
+		}
+		nodes = configured;
+		nextNode = 0;
+		quarantineMillis = quarantine;
+	}
+
+	/**
+	 * Chooses node for a new task and counts the task in its load until the next refresh. If all nodes are
+	 * quarantined, the one released first is chosen.
+	 *
+	 * @return node URL or null if no cluster is configured
+	 */
+	public static String selectNode() {
+		return selectNode(0);
+	}
+
+	/**
+	 * Chooses node for a task let through by {@link SubmissionGate}: only healthy nodes with free slots at the given
+	 * queue depth are considered (the least loaded of them is chosen), unless there is none.
+	 *
+	 * @param queueDepth
+	 *            target queue depth of the gate, 0 means free slots do not matter
+	 * @return node URL or null if no cluster is configured
+	 */
+	static synchronized String selectNode(int queueDepth) {
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		Node selected = null;
+		for (int i = 0; i < nodes.size(); i++) {
+			// start from the next node each time, so equally loaded nodes take turns
+			Node node = nodes.get((nextNode + i) % nodes.size());
+			if (selected == null || isBetter(node, selected, queueDepth, now)) {
+				selected = node;
+			}
+		}
+		nextNode = (nextNode + 1) % nodes.size();
+		selected.submitted++;
+		return selected.url;
+	}
+
+	/**
+	 * Counts tasks which can be submitted to healthy nodes without growing their queues over the given depth. Machines
+	 * available on a node take tasks at once, so they add to its depth.
+	 */
+	public static synchronized int getFreeSlots(int queueDepth) {
+		long now = System.currentTimeMillis();
+		int free = 0;
+		for (Node node : nodes) {
+			if (!node.isQuarantined(now)) {
+				free += node.freeSlots(queueDepth);
+			}
+		}
+		return free;
+	}
+
+	public static synchronized boolean isConfigured() {
+		return !nodes.isEmpty();
+	}
+
+	public static synchronized boolean hasHealthyNode() {
+		long now = System.currentTimeMillis();
+		for (Node node : nodes) {
+			if (!node.isQuarantined(now)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Quarantines the node after failed request.
+	 */
+	public static void reportFailure(String url) {
+		quarantine(url, System.currentTimeMillis() + quarantineMillis);
+	}
+
+	/**
+	 * Keeps the node out of selection at least until the given time, used while its circuit breaker is open.
+	 */
+	public static void quarantine(String url, long until) {
+		Node node = findNode(url);
+		if (node != null) {
+			synchronized (CuckooCluster.class) {
+				node.quarantinedUntil = Math.max(node.quarantinedUntil, until);
+			}
+			LOGGER.warn("Cuckoo node {} quarantined for {} ms", url, until - System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Ends quarantine of the node known to work again.
+	 */
+	public static void release(String url) {
+		Node node = findNode(url);
+		if (node != null) {
+			synchronized (CuckooCluster.class) {
+				node.quarantinedUntil = 0;
+			}
+			LOGGER.info("Cuckoo node {} released from quarantine", url);
+		}
+	}
+
+	private static boolean isBetter(Node node, Node than, int queueDepth, long now) {
+		if (queueDepth > 0) {
+			boolean room = hasRoom(node, queueDepth, now);
+			if (room != hasRoom(than, queueDepth, now)) {
+				return room;
+			}
+		}
+		boolean quarantined = node.isQuarantined(now);
+		if (quarantined != than.isQuarantined(now)) {
+			return !quarantined;
+		} else if (quarantined) {
+			return node.quarantinedUntil < than.quarantinedUntil;
+		} else {
+			return node.expectedLoad() < than.expectedLoad();
+		}
+	}
+
+	private static boolean hasRoom(Node node, int queueDepth, long now) {
+		return !node.isQuarantined(now) && node.freeSlots(queueDepth) > 0;
+	}
+
+	private static synchronized Node findNode(String url) {
+		for (Node node : nodes) {
+			if (node.url.equals(url)) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Refreshes load of healthy nodes from their status, nodes which do not respond with a valid status are
+	 * quarantined.
+	 */
+	static void refreshLoad() {
+		List<Node> current;
+		synchronized (CuckooCluster.class) {
+			current = nodes;
+		}
+		long now = System.currentTimeMillis();
+		for (Node node : current) {
+			synchronized (CuckooCluster.class) {
+				if (node.isQuarantined(now)) {
+					continue;
+				}
+			}
+			try {
+				JSONObject status = new CuckooRESTConnector(node.url).getStatus();
+				JSONObject tasks = status.getJSONObject("tasks");
+				JSONObject machines = status.optJSONObject("machines");
+				synchronized (CuckooCluster.class) {
+					node.pending = tasks.optInt("pending");
+					node.load = node.pending + tasks.optInt("running");
+					node.availableMachines = machines == null ? 0 : machines.optInt("available");
+					node.submitted = 0;
+				}
+				LOGGER.debug("Cuckoo node {}: {} pending, {} running, {} machines available", new Object[] { node.url,
+						node.pending, node.load - node.pending, node.availableMachines });
+			} catch (CuckooException | JSONException e) {
+				LOGGER.warn("Cannot get status of Cuckoo node {}: {}", node.url, e.getMessage());
+				reportFailure(node.url);
+			} catch (RuntimeException e) {
+				LOGGER.error("Refreshing load of Cuckoo node " + node.url + " failed", e);
+			}
+		}
+		SubmissionGate.capacityChanged();
+	}
+}
@@ -22,7 +22,6 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.io.IOUtils;
@@ -50,13 +49,14 @@ public class CuckooConnection implements Closeable{
 	public final void connect() throws CuckooException{
 		try {
 			getMethod = new GetMethod(url);
-			HttpClient client = new HttpClient();
-			int status = client.executeMethod(getMethod);
+			int status = CuckooHttpClient.getClient().executeMethod(getMethod);
 			if (status != HttpStatus.SC_OK) {
-				throw new CuckooException("Unexpected response status: "+ status);
+				getMethod.releaseConnection();
+				throw new CuckooException("Unexpected response status: "+ status, status);
 			}
 			in = getMethod.getResponseBodyAsStream();
 		} catch (IOException e) {
+			getMethod.releaseConnection();
 			throw new CuckooException(e.getMessage(), e);
 		}
 	}
@@ -69,6 +69,13 @@ public class CuckooConnection implements Closeable{
 		}
 	}
 	
+	/**
+	 * @return length of the response body or -1 if unknown
+	 */
+	public final long getContentLength() {
+		return getMethod.getResponseContentLength();
+	}
+
 	public final int getResultStatusCode() {
 		return getMethod.getStatusCode();
 	}
@@ -19,20 +19,83 @@
 
 package pl.nask.hsn2.connector;
 
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
 
 public class CuckooException extends Exception {
+	private static final int NO_STATUS = 0;
 
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 5807571723171152171L;
 	
+	private final int statusCode;
+
 	public CuckooException(String msg) {
 		super(msg);
+		statusCode = NO_STATUS;
 	}
 
 	public CuckooException(String message, Exception e) {
 		super(message, e);
+		statusCode = NO_STATUS;
+	}
+
+	/**
+	 * Cuckoo API responded with unexpected HTTP status.
+	 */
+	public CuckooException(String msg, int statusCode) {
+		super(msg);
+		this.statusCode = statusCode;
+	}
+
+	public final int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return true if Cuckoo refused the request itself (HTTP 4xx), so it would fail on any node
+	 */
+	public final boolean isRejected() {
+		return statusCode >= 400 && statusCode < 500;
+	}
+
+	/**
+	 * @return true if the failure tells the node is unhealthy: it cannot be reached, times out, fails on I/O or responds
+	 *         with HTTP 5xx
+	 */
+	public final boolean isNodeFailure() {
+		if (statusCode != NO_STATUS) {
+			return statusCode >= 500;
+		}
+		String reason = getReason();
+		return "timeout".equals(reason) || "connect".equals(reason) || "io".equals(reason);
+	}
+
+	/**
+	 * Short cause of the failure for metrics: status_NNN, timeout, connect, io or other.
+	 */
+	public final String getReason() {
+		if (statusCode != NO_STATUS) {
+			return "status_" + statusCode;
+		}
+		for (Throwable cause = getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof SocketTimeoutException || cause instanceof ConnectTimeoutException) {
+				return "timeout";
+			} else if (cause instanceof ConnectException || cause instanceof UnknownHostException
+					|| cause instanceof NoRouteToHostException) {
+				return "connect";
+			} else if (cause instanceof IOException) {
+				return "io";
+			}
+		}
+		return "other";
 	}
 
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.connector;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the single, thread-safe HTTP client shared by all connections to Cuckoo API. Connections are kept alive in a
+ * pool and reused by all tasks, idle ones are closed by a background thread.
+ */
+public final class CuckooHttpClient {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CuckooHttpClient.class);
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+	public static final int DEFAULT_MAX_CONNECTIONS = 100;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_READ_TIMEOUT = 120000;
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	private static final MultiThreadedHttpConnectionManager CONNECTION_MANAGER = new MultiThreadedHttpConnectionManager();
+	private static final HttpClient CLIENT = new HttpClient(CONNECTION_MANAGER);
+	private static IdleConnectionTimeoutThread idleConnectionsCloser;
+
+	static {
+		configure(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT,
+				DEFAULT_IDLE_TIMEOUT);
+	}
+
+	private CuckooHttpClient() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	/**
+	 * Sets connection pool limits and timeouts (in milliseconds).
+	 */
+	public static synchronized void configure(int maxConnectionsPerHost, int maxConnections, int connectTimeout,
+			int readTimeout, long idleTimeout) {
+		HttpConnectionManagerParams params = CONNECTION_MANAGER.getParams();
+		params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+		params.setMaxTotalConnections(maxConnections);
+		params.setConnectionTimeout(connectTimeout);
+		params.setSoTimeout(readTimeout);
+		params.setStaleCheckingEnabled(true);
+
+		if (idleConnectionsCloser != null) {
+			idleConnectionsCloser.shutdown();
+		}
+		idleConnectionsCloser = new IdleConnectionTimeoutThread();
+		idleConnectionsCloser.setName("cuckoo-idle-connections");
+		idleConnectionsCloser.setConnectionTimeout(idleTimeout);
+		idleConnectionsCloser.setTimeoutInterval(Math.max(1000, idleTimeout / 2));
+		idleConnectionsCloser.addConnectionManager(CONNECTION_MANAGER);
+		idleConnectionsCloser.start();
+
+		LOGGER.info("Cuckoo connection pool: {} per host, {} total, connect timeout {} ms, read timeout {} ms, idle timeout {} ms",
+				new Object[] { maxConnectionsPerHost, maxConnections, connectTimeout, readTimeout, idleTimeout });
+	}
+
+	public static HttpClient getClient() {
+		return CLIENT;
+	}
+}
@@ -18,12 +18,15 @@
  */
 package pl.nask.hsn2.connector;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.PostMethod;
@@ -31,12 +34,14 @@ import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import pl.nask.hsn2.ResourceException;
+import pl.nask.hsn2.metrics.Metrics;
 
 public class CuckooRESTConnector {
 	private static final Logger LOGGER = LoggerFactory.getLogger(CuckooRESTConnector.class);
@@ -48,7 +53,33 @@ public class CuckooRESTConnector {
 	private static final String GET_PCAP = "/pcap/get/";
 	private static final String GET_SCREENSHOTS = "/tasks/screenshots/";
 	private static final String DELETE_TASK = "/tasks/delete/";
+	private static final String LIST_TASKS = "/tasks/list/";
+	private static final String CUCKOO_STATUS = "/cuckoo/status";
+	private static final int LIST_TASKS_WINDOW = 100;
 	private static String cuckooURL = null;
+	private final String nodeURL;
+
+	/**
+	 * Creates connector for the default Cuckoo API address.
+	 */
+	public CuckooRESTConnector() {
+		this(null);
+	}
+
+	/**
+	 * Creates connector pinned to the given Cuckoo node, ids of tasks submitted through it are valid only there.
+	 */
+	public CuckooRESTConnector(String nodeURL) {
+		this.nodeURL = nodeURL;
+	}
+
+	/**
+	 * Creates connector for a new task: waits in submission gate (if enabled) and chooses the least loaded node of
+	 * Cuckoo cluster or the default address if no cluster is configured.
+	 */
+	public static CuckooRESTConnector forNewTask() throws InterruptedException {
+		return new CuckooRESTConnector(SubmissionGate.admit());
+	}
 	
 	public static void setCuckooURL(String cuckooURL){
 		if (cuckooURL != null){
@@ -59,8 +90,19 @@ public class CuckooRESTConnector {
 		}
 	}
 	
+	public final String getCuckooURL() {
+		return nodeURL != null ? nodeURL : cuckooURL;
+	}
+
+	/**
+	 * Quarantines node of this connector in Cuckoo cluster.
+	 */
+	public final void reportNodeFailure() {
+		CuckooCluster.reportFailure(getCuckooURL());
+	}
+
 	public final void deleteTaskData(long cuckooTaskId) {
-		try(CuckooConnection connection = connect(cuckooURL + DELETE_TASK + cuckooTaskId)){
+		try(CuckooConnection connection = connect(DELETE_TASK, getCuckooURL() + DELETE_TASK + cuckooTaskId)){
 			int status = connection.getResultStatusCode();
 			switch (status) {
 			case HttpStatus.SC_OK: 
@@ -82,32 +124,28 @@ public class CuckooRESTConnector {
 		}
 	}
 	
-	public final long sendFile(File file, Set<NameValuePair> cuckooParams) throws CuckooException, ResourceException{
-		
-		PostMethod post = new PostMethod(cuckooURL + SEND_FILE_TASK);
-		try {
-			int size = cuckooParams.size();
-			Part[] parts = new Part[size + 1];
-            int i = 0;
-			for (NameValuePair pair : cuckooParams){
-            	parts[i] = new StringPart(pair.getName(), pair.getValue());
-            	i++;
-			}
-            parts[i] = new FilePart("file", file);
-            
-			RequestEntity entity = new MultipartRequestEntity(parts, post.getParams());
-			post.setRequestEntity(entity);
-			return sendPost(post);
-		} 
-		catch (FileNotFoundException e){
-			LOGGER.error("This should never happen!", e);
-			throw new ResourceException(e.getMessage(), e);
+	/**
+	 * Sends file read from given source. When source length is unknown the file is streamed with chunked transfer
+	 * encoding.
+	 */
+	public final long sendFile(PartSource file, Set<NameValuePair> cuckooParams) throws CuckooException {
+		PostMethod post = new PostMethod(getCuckooURL() + SEND_FILE_TASK);
+		int size = cuckooParams.size();
+		Part[] parts = new Part[size + 1];
+		int i = 0;
+		for (NameValuePair pair : cuckooParams){
+			parts[i] = new StringPart(pair.getName(), pair.getValue());
+			i++;
 		}
-		
+		parts[i] = new FilePart("file", file);
+
+		RequestEntity entity = new MultipartRequestEntity(parts, post.getParams());
+		post.setRequestEntity(entity);
+		return sendPost(post);
 	}
 
 	public final long sendURL(String urlForProc, Set<NameValuePair> cuckooParams) throws CuckooException {
-		PostMethod post = new PostMethod(cuckooURL + SEND_URL_TASK);
+		PostMethod post = new PostMethod(getCuckooURL() + SEND_URL_TASK);
 		post.addParameter(new NameValuePair("url", urlForProc));
 		for (NameValuePair pair : cuckooParams){
 			post.addParameter(pair);
@@ -116,23 +154,31 @@ public class CuckooRESTConnector {
 	}
 	
 	private long sendPost(PostMethod post) throws CuckooException{
+		String endpoint = String.valueOf(post.getPath()).endsWith(SEND_FILE_TASK) ? SEND_FILE_TASK : SEND_URL_TASK;
+		long start = requestStarted();
 		try {
-			HttpClient client = new HttpClient();
-			int status = client.executeMethod(post);
+			int status = CuckooHttpClient.getClient().executeMethod(post);
 			if (status == HttpStatus.SC_OK) {
 				String result = post.getResponseBodyAsString();
 				JSONObject taskIdObject = new JSONObject(result);
 				return taskIdObject.getLong("task_id");
 			}
 			else {
-				throw new CuckooException("Unexpected response status: "+ status);
+				throw new CuckooException("Unexpected response status: "+ status, status);
 			}
 		} catch (IOException e) {
-			throw new CuckooException("Error while sending post data to " + cuckooURL + " : " + e.getMessage(), e);
-		} 
-		
-		finally{
+			CuckooException failure = new CuckooException("Error while sending post data to " + getCuckooURL() + " : " + e.getMessage(), e);
+			requestFailed(endpoint, failure.getReason());
+			throw failure;
+		} catch (CuckooException e) {
+			requestFailed(endpoint, e.getReason());
+			throw e;
+		} catch (JSONException e) {
+			requestFailed(endpoint, "bad_response");
+			throw e;
+		} finally{
 			post.releaseConnection();
+			requestFinished(endpoint, start);
 		}
 	}
 	
@@ -145,15 +191,15 @@ public class CuckooRESTConnector {
 	}
 	
 	public final CuckooConnection getPcapAsStream(long cuckooTaskId) throws CuckooException{
-		return connect(cuckooURL + GET_PCAP + cuckooTaskId);
+		return connect(GET_PCAP, getCuckooURL() + GET_PCAP + cuckooTaskId);
 	}
 	
 	public final CuckooConnection getScreenshotsAsStream(long cuckooTaskId) throws CuckooException{
-		return connect(cuckooURL + GET_SCREENSHOTS + cuckooTaskId);
+		return connect(GET_SCREENSHOTS, getCuckooURL() + GET_SCREENSHOTS + cuckooTaskId);
 	}
 	
 	public final JSONObject getTaskInfo(long cuckooTaskId) throws CuckooException{
-		try(CuckooConnection connection = connect(cuckooURL + CHECK_TASK + cuckooTaskId)){
+		try(CuckooConnection connection = connect(CHECK_TASK, getCuckooURL() + CHECK_TASK + cuckooTaskId)){
 			String result = connection.getBodyAsString();
 			if (result != null){
 				return new JSONObject(result).getJSONObject("task");
@@ -166,14 +212,98 @@ public class CuckooRESTConnector {
 		}
 	}
 	
+	/**
+	 * Gets status of many tasks at once. Tasks are listed newest first in windows of {@value #LIST_TASKS_WINDOW}
+	 * until all requested ids are found or the oldest of them is passed. Ids not found in the list are not present in
+	 * the result.
+	 */
+	public final Map<Long, CuckooTaskStatus> getTasksStatus(Collection<Long> cuckooTaskIds) throws CuckooException {
+		Map<Long, CuckooTaskStatus> result = new HashMap<>();
+		if (cuckooTaskIds.isEmpty()) {
+			return result;
+		}
+		Set<Long> wanted = new HashSet<>(cuckooTaskIds);
+		long oldestId = Collections.min(cuckooTaskIds);
+		for (int offset = 0; !wanted.isEmpty(); offset += LIST_TASKS_WINDOW) {
+			List<CuckooTaskStatus> tasks = getTasksList(LIST_TASKS_WINDOW, offset);
+			long oldestListed = Long.MAX_VALUE;
+			for (CuckooTaskStatus task : tasks) {
+				if (wanted.remove(task.getId())) {
+					result.put(task.getId(), task);
+				}
+				oldestListed = Math.min(oldestListed, task.getId());
+			}
+			if (tasks.size() < LIST_TASKS_WINDOW || oldestListed <= oldestId) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Gets status of Cuckoo node (tasks by state, machines, etc.).
+	 */
+	public final JSONObject getStatus() throws CuckooException {
+		try (CuckooConnection connection = connect(CUCKOO_STATUS, getCuckooURL() + CUCKOO_STATUS)) {
+			String result = connection.getBodyAsString();
+			if (result != null) {
+				return new JSONObject(result);
+			} else {
+				throw new CuckooException("No status data.");
+			}
+		} catch (IOException e) {
+			throw new CuckooException(e.getMessage(), e);
+		}
+	}
+
+	private List<CuckooTaskStatus> getTasksList(int limit, int offset) throws CuckooException {
+		try (CuckooConnection connection = connect(LIST_TASKS, getCuckooURL() + LIST_TASKS + limit + "/" + offset)) {
+			return CuckooTaskStatus.readTasksList(connection.getBodyAsInputStream());
+		} catch (IOException | IllegalStateException e) {
+			throw new CuckooException(e.getMessage(), e);
+		}
+	}
+
 	private CuckooConnection getReportAsStream(long cuckooTaskId, String type) throws CuckooException{
-		return connect(cuckooURL + GET_REPORT + cuckooTaskId +"/"+ type);
+		return connect(GET_REPORT + type, getCuckooURL() + GET_REPORT + cuckooTaskId +"/"+ type);
 	}
 	
-	private CuckooConnection connect(String url) throws CuckooException{
-		CuckooConnection connection = new CuckooConnection(url);
-		connection.connect();
-		return connection;
+	/**
+	 * Opens connection, for streamed responses the request is measured until the response headers arrive.
+	 */
+	private CuckooConnection connect(String endpoint, String url) throws CuckooException{
+		long start = requestStarted();
+		try {
+			CuckooConnection connection = new CuckooConnection(url);
+			connection.connect();
+			return connection;
+		} catch (CuckooException e) {
+			requestFailed(endpoint, e.getReason());
+			throw e;
+		} finally {
+			requestFinished(endpoint, start);
+		}
+	}
+
+	private static long requestStarted() {
+		Metrics.gauge("cuckoo_api_requests_in_flight").inc();
+		return System.nanoTime();
+	}
+
+	private static void requestFinished(String endpoint, long start) {
+		String label = endpointLabel(endpoint);
+		Metrics.gauge("cuckoo_api_requests_in_flight").dec();
+		Metrics.counter("cuckoo_api_requests_total", "endpoint", label).inc();
+		Metrics.histogram("cuckoo_api_request_millis", "endpoint", label).recordSince(start);
+	}
+
+	private static void requestFailed(String endpoint, String cause) {
+		Metrics.counter("cuckoo_api_errors_total", "endpoint", endpointLabel(endpoint), "cause", cause).inc();
+	}
+
+	private static String endpointLabel(String endpoint) {
+		int start = endpoint.startsWith("/") ? 1 : 0;
+		int end = endpoint.endsWith("/") ? endpoint.length() - 1 : endpoint.length();
+		return endpoint.substring(start, end);
 	}
-	
 }
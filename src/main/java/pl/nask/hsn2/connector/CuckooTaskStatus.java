@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Status of a single Cuckoo task, only the fields the service needs.
+ */
+public class CuckooTaskStatus {
+	private static final String REPORTED = "reported";
+
+	private final long id;
+	private final String status;
+	private final String addedOn;
+	private final String startedOn;
+	private final String completedOn;
+
+	public CuckooTaskStatus(long id, String status, String startedOn, String completedOn) {
+		this(id, status, null, startedOn, completedOn);
+	}
+
+	public CuckooTaskStatus(long id, String status, String addedOn, String startedOn, String completedOn) {
+		this.id = id;
+		this.status = status;
+		this.addedOn = addedOn;
+		this.startedOn = startedOn;
+		this.completedOn = completedOn;
+	}
+
+	public CuckooTaskStatus(JSONObject taskInfo) {
+		this(taskInfo.optLong("id"), taskInfo.getString("status"), taskInfo.optString("added_on", null), taskInfo
+				.optString("started_on", null), taskInfo.optString("completed_on", null));
+	}
+
+	public final long getId() {
+		return id;
+	}
+
+	public final String getStatus() {
+		return status;
+	}
+
+	public final boolean isReported() {
+		return REPORTED.equals(status);
+	}
+
+	/**
+	 * Time the task was queued in Cuckoo, null if Cuckoo did not send it.
+	 */
+	public final String getAddedOn() {
+		return addedOn;
+	}
+
+	public final String getStartedOn() {
+		return startedOn;
+	}
+
+	public final String getCompletedOn() {
+		return completedOn;
+	}
+
+	/**
+	 * Reads tasks from '/tasks/list' response, everything except status fields is skipped.
+	 */
+	static List<CuckooTaskStatus> readTasksList(InputStream stream) throws IOException {
+		List<CuckooTaskStatus> tasks = new ArrayList<>();
+		JsonReader reader = new JsonReader(new InputStreamReader(stream, "UTF-8"));
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if ("tasks".equals(reader.nextName())) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					tasks.add(readTask(reader));
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return tasks;
+	}
+
+	private static CuckooTaskStatus readTask(JsonReader reader) throws IOException {
+		long id = 0;
+		String status = null;
+		String addedOn = null;
+		String startedOn = null;
+		String completedOn = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+			} else if ("id".equals(name)) {
+				id = reader.nextLong();
+			} else if ("status".equals(name)) {
+				status = reader.nextString();
+			} else if ("added_on".equals(name)) {
+				addedOn = reader.nextString();
+			} else if ("started_on".equals(name)) {
+				startedOn = reader.nextString();
+			} else if ("completed_on".equals(name)) {
+				completedOn = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return new CuckooTaskStatus(id, status, addedOn, startedOn, completedOn);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.connector;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds new tasks in the service while Cuckoo queues are full. A task is let through when pending tasks of healthy
+ * nodes (as last refreshed by {@link CuckooCluster}, plus tasks submitted since) leave room below the target queue
+ * depth. Waiting tasks are admitted strictly in arrival order.
+ */
+public final class SubmissionGate {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SubmissionGate.class);
+
+	private static final Lock LOCK = new ReentrantLock();
+	private static final Condition CAPACITY_CHANGED = LOCK.newCondition();
+	private static final Queue<Thread> WAITING = new ArrayDeque<>();
+	private static int queueDepth = 0;
+
+	private SubmissionGate() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	/**
+	 * @param depth
+	 *            target number of tasks waiting in Cuckoo queue of every node, 0 disables the gate
+	 */
+	public static void configure(int depth) {
+		LOCK.lock();
+		try {
+			queueDepth = depth;
+			CAPACITY_CHANGED.signalAll();
+		} finally {
+			LOCK.unlock();
+		}
+		if (depth > 0) {
+			LOGGER.info("Submission gate keeps Cuckoo queues at depth {}", depth);
+		}
+	}
+
+	/**
+	 * Waits until there is room in Cuckoo queues and all tasks that came earlier are admitted.
+	 *
+	 * @return URL of the node chosen for the task, see {@link CuckooCluster#selectNode(int)}
+	 */
+	static String admit() throws InterruptedException {
+		LOCK.lock();
+		try {
+			if (queueDepth == 0) {
+				return CuckooCluster.selectNode();
+			}
+			Thread current = Thread.currentThread();
+			WAITING.add(current);
+			try {
+				if (WAITING.peek() != current || !hasRoom()) {
+					LOGGER.debug("Cuckoo queues full, {} tasks waiting for submission", WAITING.size());
+				}
+				while (WAITING.peek() != current || !hasRoom()) {
+					CAPACITY_CHANGED.await();
+				}
+				// the room counted for the whole cluster has to be taken on a node which has it
+				return CuckooCluster.selectNode(queueDepth);
+			} finally {
+				WAITING.remove(current);
+				CAPACITY_CHANGED.signalAll();
+			}
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	static int getWaitingCount() {
+		LOCK.lock();
+		try {
+			return WAITING.size();
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * Called when load of Cuckoo nodes has been refreshed.
+	 */
+	static void capacityChanged() {
+		LOCK.lock();
+		try {
+			CAPACITY_CHANGED.signalAll();
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	private static boolean hasRoom() {
+		return queueDepth == 0 || !CuckooCluster.isConfigured() || CuckooCluster.getFreeSlots(queueDepth) > 0;
+	}
+}
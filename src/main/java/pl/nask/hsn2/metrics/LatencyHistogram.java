@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations in milliseconds counted in fixed buckets, from 1 ms to 1 hour. Percentiles are upper bounds of the buckets
+ * they fall in, which is precise enough for capacity planning and costs one atomic increment per observation.
+ */
+public final class LatencyHistogram extends Metric implements LatencyHistogramMBean {
+	private static final long[] BOUNDS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000,
+			120000, 300000, 600000, 1800000, 3600000 };
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	LatencyHistogram(String name, String labels) {
+		super(name, labels);
+	}
+
+	public void record(long millis) {
+		long value = Math.max(0, millis);
+		int bucket = 0;
+		while (bucket < BOUNDS.length && value > BOUNDS[bucket]) {
+			bucket++;
+		}
+		buckets.incrementAndGet(bucket);
+		sum.addAndGet(value);
+		count.incrementAndGet();
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Records time elapsed since given {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public long getSumMillis() {
+		return sum.get();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / (double) n;
+	}
+
+	@Override
+	public long getMaxMillis() {
+		return max.get();
+	}
+
+	@Override
+	public long get50thPercentileMillis() {
+		return percentile(0.5);
+	}
+
+	@Override
+	public long get90thPercentileMillis() {
+		return percentile(0.9);
+	}
+
+	@Override
+	public long get99thPercentileMillis() {
+		return percentile(0.99);
+	}
+
+	private long percentile(double quantile) {
+		long n = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			n += buckets.get(i);
+		}
+		long rank = (long) Math.ceil(quantile * n);
+		long seen = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				return Math.min(BOUNDS[i], max.get());
+			}
+		}
+		return max.get();
+	}
+
+	@Override
+	String getType() {
+		return "histogram";
+	}
+
+	@Override
+	void writeSamples(StringBuilder out) {
+		long cumulative = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			cumulative += buckets.get(i);
+			writeSample(out, "_bucket", "le=\"" + BOUNDS[i] + "\"", cumulative);
+		}
+		cumulative += buckets.get(BOUNDS.length);
+		writeSample(out, "_bucket", "le=\"+Inf\"", cumulative);
+		writeSample(out, "_sum", null, getSumMillis());
+		writeSample(out, "_count", null, cumulative);
+	}
+}
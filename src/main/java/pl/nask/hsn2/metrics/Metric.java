@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.metrics;
+
+/**
+ * Named metric with a fixed set of labels, written in Prometheus text format.
+ */
+public abstract class Metric {
+	private final String name;
+	private final String labels;
+
+	Metric(String name, String labels) {
+		this.name = name;
+		this.labels = labels;
+	}
+
+	public final String getName() {
+		return name;
+	}
+
+	/**
+	 * Labels as in Prometheus text format (without braces), empty if there are none.
+	 */
+	public final String getLabels() {
+		return labels;
+	}
+
+	abstract String getType();
+
+	abstract void writeSamples(StringBuilder out);
+
+	final void writeSample(StringBuilder out, String suffix, String extraLabel, Number value) {
+		out.append(name).append(suffix);
+		if (!labels.isEmpty() || extraLabel != null) {
+			out.append('{').append(labels);
+			if (extraLabel != null) {
+				out.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+			}
+			out.append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+}
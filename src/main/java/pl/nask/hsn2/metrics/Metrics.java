@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of service metrics. Metrics are created on first use, identified by name and label values (given as
+ * name/value pairs), and every one of them is registered in the platform MBean server, so they are visible over JMX
+ * as well as on {@link MetricsEndpoint}.
+ */
+public final class Metrics {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+	private static final String JMX_DOMAIN = "pl.nask.hsn2.cuckoo";
+
+	private static final ConcurrentMap<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+
+	private Metrics() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	public static Counter counter(String name, String... labels) {
+		String key = key(name, labels);
+		Metric metric = METRICS.get(key);
+		if (metric == null) {
+			metric = register(key, new Counter(name, formatLabels(labels)), labels);
+		}
+		return (Counter) metric;
+	}
+
+	public static Gauge gauge(String name, String... labels) {
+		String key = key(name, labels);
+		Metric metric = METRICS.get(key);
+		if (metric == null) {
+			metric = register(key, new Gauge(name, formatLabels(labels)), labels);
+		}
+		return (Gauge) metric;
+	}
+
+	public static LatencyHistogram histogram(String name, String... labels) {
+		String key = key(name, labels);
+		Metric metric = METRICS.get(key);
+		if (metric == null) {
+			metric = register(key, new LatencyHistogram(name, formatLabels(labels)), labels);
+		}
+		return (LatencyHistogram) metric;
+	}
+
+	/**
+	 * Writes all metrics in Prometheus text format.
+	 */
+	public static String scrape() {
+		StringBuilder out = new StringBuilder();
+		String lastName = null;
+		for (Metric metric : METRICS.values()) {
+			if (!metric.getName().equals(lastName)) {
+				lastName = metric.getName();
+				out.append("# TYPE ").append(lastName).append(' ').append(metric.getType()).append('\n');
+			}
+			metric.writeSamples(out);
+		}
+		return out.toString();
+	}
+
+	private static synchronized Metric register(String key, Metric metric, String[] labels) {
+		Metric existing = METRICS.get(key);
+		if (existing != null) {
+			return existing;
+		}
+		METRICS.put(key, metric);
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = objectName(metric, labels);
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(metric, objectName);
+			}
+		} catch (JMException e) {
+			LOGGER.warn("Cannot register metric " + key + " in JMX", e);
+		}
+		return metric;
+	}
+
+	private static ObjectName objectName(Metric metric, String[] labels) throws JMException {
+		StringBuilder name = new StringBuilder(JMX_DOMAIN).append(":type=").append(metric.getType()).append(",name=")
+				.append(metric.getName());
+		for (int i = 0; i + 1 < labels.length; i += 2) {
+			name.append(',').append(labels[i]).append('=').append(ObjectName.quote(labels[i + 1]));
+		}
+		return new ObjectName(name.toString());
+	}
+
+	/**
+	 * Space sorts before any character of metric names, so metrics of one name stay together in the registry.
+	 */
+	private static String key(String name, String[] labels) {
+		return name + " " + formatLabels(labels);
+	}
+
+	private static String formatLabels(String[] labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Label names and values expected in pairs");
+		}
+		StringBuilder formatted = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				formatted.append(',');
+			}
+			formatted.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+		}
+		return formatted.toString();
+	}
+
+	private static String escape(String value) {
+		return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.task.DaemonThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link Metrics#scrape()} at /metrics on the loopback interface, for a local scraper or agent.
+ */
+public final class MetricsEndpoint {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricsEndpoint.class);
+	private static final String PATH = "/metrics";
+
+	private static HttpServer server;
+
+	private MetricsEndpoint() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	/**
+	 * Starts the endpoint, or restarts it on another port.
+	 */
+	public static synchronized void start(int port) throws IOException {
+		stop();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.setExecutor(Executors.newSingleThreadExecutor(new DaemonThreadFactory("cuckoo-metrics")));
+		server.createContext(PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(body);
+					}
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		LOGGER.info("Metrics available at http://{}:{}{}", new Object[] { server.getAddress().getHostString(),
+				server.getAddress().getPort(), PATH });
+	}
+
+	public static synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+}
@@ -20,23 +20,77 @@
 package pl.nask.hsn2.service;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import pl.nask.hsn2.CommandLineParams;
+import pl.nask.hsn2.connector.CuckooCluster;
+import pl.nask.hsn2.connector.CuckooHttpClient;
+import pl.nask.hsn2.task.ArtifactFetcher;
+import pl.nask.hsn2.task.RetryScheduler;
+import pl.nask.hsn2.task.StoredEncoding;
+import pl.nask.hsn2.task.UrlSubmissions;
 
 public class CuckooCommandLineParams extends CommandLineParams {
 	private static final OptionNameWrapper CUCKOO_ADDRESS = new OptionNameWrapper("ca", "cuckooAddress");
 	private static final OptionNameWrapper CUCKOO_PROC_PATH = new OptionNameWrapper("cpp", "cuckooProcPath");
 	private static final OptionNameWrapper CLEAN_JOB_DATA = new OptionNameWrapper("clean", "cleanupJob");
+	private static final OptionNameWrapper MAX_CONNECTIONS_PER_HOST = new OptionNameWrapper("cmch", "cuckooMaxConnPerHost");
+	private static final OptionNameWrapper MAX_CONNECTIONS = new OptionNameWrapper("cmc", "cuckooMaxConn");
+	private static final OptionNameWrapper CONNECT_TIMEOUT = new OptionNameWrapper("cct", "cuckooConnectTimeout");
+	private static final OptionNameWrapper READ_TIMEOUT = new OptionNameWrapper("crt", "cuckooReadTimeout");
+	private static final OptionNameWrapper IDLE_TIMEOUT = new OptionNameWrapper("cit", "cuckooIdleTimeout");
+	private static final OptionNameWrapper COMPLETION_THREADS = new OptionNameWrapper("ccth", "cuckooCompletionThreads");
+	private static final OptionNameWrapper ARTIFACT_THREADS = new OptionNameWrapper("cath", "cuckooArtifactThreads");
+	private static final OptionNameWrapper ARTIFACTS_PER_NODE = new OptionNameWrapper("capn", "cuckooArtifactsPerNode");
+	private static final OptionNameWrapper VERDICT_CACHE_FILE = new OptionNameWrapper("vcf", "verdictCacheFile");
+	private static final OptionNameWrapper VERDICT_CACHE_TTL = new OptionNameWrapper("vcttl", "verdictCacheTtl");
+	private static final OptionNameWrapper VERDICT_CACHE_SIZE = new OptionNameWrapper("vcsize", "verdictCacheSize");
+	private static final OptionNameWrapper URL_VERDICT_WINDOW = new OptionNameWrapper("cuw", "cuckooUrlWindow");
+	private static final OptionNameWrapper NODE_REFRESH = new OptionNameWrapper("cnr", "cuckooNodeRefresh");
+	private static final OptionNameWrapper NODE_QUARANTINE = new OptionNameWrapper("cnq", "cuckooNodeQuarantine");
+	private static final OptionNameWrapper QUEUE_DEPTH = new OptionNameWrapper("cqd", "cuckooQueueDepth");
+	private static final OptionNameWrapper BREAKER_THRESHOLD = new OptionNameWrapper("cbt", "cuckooBreakerThreshold");
+	private static final OptionNameWrapper BREAKER_OPEN = new OptionNameWrapper("cbo", "cuckooBreakerOpen");
+	private static final OptionNameWrapper RATINGS_FILE = new OptionNameWrapper("rf", "ratingsFile");
+	private static final OptionNameWrapper METRICS_PORT = new OptionNameWrapper("mp", "metricsPort");
+	private static final OptionNameWrapper REPORT_SPILL_THRESHOLD = new OptionNameWrapper("rst", "reportSpillThreshold");
+	private static final OptionNameWrapper REPORT_SPILL_DIR = new OptionNameWrapper("rsd", "reportSpillDir");
+	private static final OptionNameWrapper STORE_ENCODING = new OptionNameWrapper("se", "storeEncoding");
+	private static final OptionNameWrapper STORE_ENCODING_LEVEL = new OptionNameWrapper("sel", "storeEncodingLevel");
 	private static final Logger LOGGER = LoggerFactory.getLogger(CuckooCommandLineParams.class);
 	@Override
 	public final void initOptions() {
 		super.initOptions();
-		addOption(CUCKOO_ADDRESS, "url", "API server address");
-		addOption(CUCKOO_PROC_PATH, "path", "Path for processing files");
+		addOption(CUCKOO_ADDRESS, "url", "API server address, comma separated addresses of all nodes for Cuckoo cluster");
+		addOption(CUCKOO_PROC_PATH, "path", "Deprecated, not used (samples are streamed to Cuckoo)");
 		addOption(CLEAN_JOB_DATA, "flag", "Clean cuckoo job data after task is processed (true/false)");
+		addOption(MAX_CONNECTIONS_PER_HOST, "number", "Maximum number of pooled connections to one Cuckoo API host");
+		addOption(MAX_CONNECTIONS, "number", "Maximum number of pooled connections to Cuckoo API");
+		addOption(CONNECT_TIMEOUT, "millis", "Cuckoo API connect timeout");
+		addOption(READ_TIMEOUT, "millis", "Cuckoo API read timeout");
+		addOption(IDLE_TIMEOUT, "millis", "Time after which idle pooled connections are closed");
+		addOption(COMPLETION_THREADS, "number", "Threads finishing analysed tasks, 0 means every task polls Cuckoo on its own");
+		addOption(ARTIFACT_THREADS, "number", "Threads retrieving artifacts (reports, PCAP, screenshots) of all tasks");
+		addOption(ARTIFACTS_PER_NODE, "number", "Maximum number of concurrent artifact downloads from one Cuckoo node");
+		addOption(RATINGS_FILE, "path", "Signature ratings file, reloaded on change (ratings.conf from classpath if not set)");
+		addOption(VERDICT_CACHE_FILE, "path", "File keeping verdicts of analysed samples, verdict cache is disabled if not set");
+		addOption(VERDICT_CACHE_TTL, "minutes", "Time after which cached verdicts expire");
+		addOption(VERDICT_CACHE_SIZE, "number", "Maximum number of cached verdicts");
+		addOption(NODE_REFRESH, "seconds", "Interval of Cuckoo cluster nodes load refresh");
+		addOption(NODE_QUARANTINE, "seconds", "Time for which failed Cuckoo cluster node gets no new tasks");
+		addOption(BREAKER_THRESHOLD, "number", "Consecutive failures after which Cuckoo node gets no requests for a while");
+		addOption(BREAKER_OPEN, "seconds", "Time after which failed Cuckoo node is probed again (doubled on every failed probe)");
+		addOption(QUEUE_DEPTH, "number", "Target number of tasks pending in Cuckoo queue (per node), 0 means no limit");
+		addOption(URL_VERDICT_WINDOW, "seconds", "Time for which verdicts of URLs are shared with identical submissions");
+		addOption(METRICS_PORT, "port", "Local port of metrics endpoint (http://localhost:port/metrics), 0 means disabled");
+		addOption(REPORT_SPILL_THRESHOLD, "MB", "Reports larger than that or of unknown size are downloaded to a file, 0 means never");
+		addOption(REPORT_SPILL_DIR, "path", "Directory for downloaded reports (system temporary directory if not set)");
+		addOption(STORE_ENCODING, "codec", "Compression of reports and PCAP files in data store (none/gzip/deflate)");
+		addOption(STORE_ENCODING_LEVEL, "level", "Compression level, 1 (fastest) to 9 (best)");
 	}
 	
 	@Override
@@ -44,14 +98,67 @@ public class CuckooCommandLineParams extends CommandLineParams {
 		super.initDefaults();
 		setDefaultServiceNameAndQueueName("cuckoo");
 		setDefaultValue(CUCKOO_ADDRESS, "http://localhost:1337");
-		setDefaultValue(CUCKOO_PROC_PATH, "/tmp");
 		setDefaultValue(CLEAN_JOB_DATA, "true");
+		setDefaultValue(MAX_CONNECTIONS_PER_HOST, String.valueOf(CuckooHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST));
+		setDefaultValue(MAX_CONNECTIONS, String.valueOf(CuckooHttpClient.DEFAULT_MAX_CONNECTIONS));
+		setDefaultValue(CONNECT_TIMEOUT, String.valueOf(CuckooHttpClient.DEFAULT_CONNECT_TIMEOUT));
+		setDefaultValue(READ_TIMEOUT, String.valueOf(CuckooHttpClient.DEFAULT_READ_TIMEOUT));
+		setDefaultValue(IDLE_TIMEOUT, String.valueOf(CuckooHttpClient.DEFAULT_IDLE_TIMEOUT));
+		setDefaultValue(COMPLETION_THREADS, "4");
+		setDefaultValue(ARTIFACT_THREADS, String.valueOf(ArtifactFetcher.DEFAULT_THREADS));
+		setDefaultValue(ARTIFACTS_PER_NODE, String.valueOf(ArtifactFetcher.DEFAULT_PER_NODE));
+		setDefaultValue(VERDICT_CACHE_TTL, "1440");
+		setDefaultValue(VERDICT_CACHE_SIZE, "10000");
+		setDefaultValue(NODE_REFRESH, String.valueOf(CuckooCluster.DEFAULT_REFRESH_SECS));
+		setDefaultValue(NODE_QUARANTINE, String.valueOf(CuckooCluster.DEFAULT_QUARANTINE_SECS));
+		setDefaultValue(BREAKER_THRESHOLD, String.valueOf(RetryScheduler.DEFAULT_FAILURE_THRESHOLD));
+		setDefaultValue(BREAKER_OPEN, String.valueOf(RetryScheduler.DEFAULT_OPEN_SECS));
+		setDefaultValue(QUEUE_DEPTH, "0");
+		setDefaultValue(URL_VERDICT_WINDOW, String.valueOf(UrlSubmissions.DEFAULT_WINDOW_SECS));
+		setDefaultValue(METRICS_PORT, "0");
+		setDefaultValue(REPORT_SPILL_THRESHOLD, "0");
+		setDefaultValue(STORE_ENCODING, StoredEncoding.NONE);
+		setDefaultValue(STORE_ENCODING_LEVEL, String.valueOf(StoredEncoding.DEFAULT_LEVEL));
 	}
 	
 	public final String getCuckooAdress(){
 		return getOptionValue(CUCKOO_ADDRESS);
 	}
 	
+	public final List<String> getCuckooAddresses() {
+		List<String> addresses = new ArrayList<>();
+		for (String address : getCuckooAdress().split(",")) {
+			if (!address.trim().isEmpty()) {
+				addresses.add(address.trim());
+			}
+		}
+		return addresses;
+	}
+
+	public final long getNodeRefresh() {
+		return Long.parseLong(getOptionValue(NODE_REFRESH));
+	}
+
+	public final long getNodeQuarantine() {
+		return Long.parseLong(getOptionValue(NODE_QUARANTINE));
+	}
+	
+	public final int getBreakerThreshold() {
+		return Integer.parseInt(getOptionValue(BREAKER_THRESHOLD));
+	}
+
+	public final long getBreakerOpen() {
+		return Long.parseLong(getOptionValue(BREAKER_OPEN));
+	}
+
+	public final int getQueueDepth() {
+		return Integer.parseInt(getOptionValue(QUEUE_DEPTH));
+	}
+	
+	/**
+	 * @deprecated samples are streamed to Cuckoo, the option is accepted only for compatibility with old configurations
+	 */
+	@Deprecated
 	public final String getCuckooProcPath(){
 		return getOptionValue(CUCKOO_PROC_PATH);
 	}
@@ -59,17 +166,182 @@ public class CuckooCommandLineParams extends CommandLineParams {
 	public final boolean isCleanJobData() {
 		return "true".equalsIgnoreCase(getOptionValue(CLEAN_JOB_DATA));
 	}
+
+	public final int getMaxConnectionsPerHost() {
+		return Integer.parseInt(getOptionValue(MAX_CONNECTIONS_PER_HOST));
+	}
+
+	public final int getMaxConnections() {
+		return Integer.parseInt(getOptionValue(MAX_CONNECTIONS));
+	}
+
+	public final int getConnectTimeout() {
+		return Integer.parseInt(getOptionValue(CONNECT_TIMEOUT));
+	}
+
+	public final int getReadTimeout() {
+		return Integer.parseInt(getOptionValue(READ_TIMEOUT));
+	}
+
+	public final long getIdleTimeout() {
+		return Long.parseLong(getOptionValue(IDLE_TIMEOUT));
+	}
+
+	public final int getCompletionThreads() {
+		return Integer.parseInt(getOptionValue(COMPLETION_THREADS));
+	}
+
+	public final int getArtifactThreads() {
+		return Integer.parseInt(getOptionValue(ARTIFACT_THREADS));
+	}
+
+	public final int getArtifactsPerNode() {
+		return Integer.parseInt(getOptionValue(ARTIFACTS_PER_NODE));
+	}
+
+	/**
+	 * @return ratings file or null if ratings are loaded from classpath
+	 */
+	public final File getRatingsFile() {
+		String path = getOptionValue(RATINGS_FILE);
+		return path == null || path.isEmpty() ? null : new File(path);
+	}
+
+	/**
+	 * @return verdict cache file or null if verdict cache is disabled
+	 */
+	public final File getVerdictCacheFile() {
+		String path = getOptionValue(VERDICT_CACHE_FILE);
+		return path == null || path.isEmpty() ? null : new File(path);
+	}
+
+	public final long getVerdictCacheTtl() {
+		return Long.parseLong(getOptionValue(VERDICT_CACHE_TTL));
+	}
+
+	public final int getVerdictCacheSize() {
+		return Integer.parseInt(getOptionValue(VERDICT_CACHE_SIZE));
+	}
+
+	public final long getUrlVerdictWindow() {
+		return Long.parseLong(getOptionValue(URL_VERDICT_WINDOW));
+	}
+
+	/**
+	 * @return threshold in bytes, 0 if reports are never spilled
+	 */
+	public final long getReportSpillThreshold() {
+		return Long.parseLong(getOptionValue(REPORT_SPILL_THRESHOLD)) * 1024 * 1024;
+	}
+
+	/**
+	 * @return directory of spilled reports or null for system temporary directory
+	 */
+	public final File getReportSpillDir() {
+		String path = getOptionValue(REPORT_SPILL_DIR);
+		return path == null || path.isEmpty() ? null : new File(path);
+	}
+
+	public final String getStoreEncoding() {
+		return getOptionValue(STORE_ENCODING);
+	}
+
+	public final int getStoreEncodingLevel() {
+		return Integer.parseInt(getOptionValue(STORE_ENCODING_LEVEL));
+	}
+
+	public final int getMetricsPort() {
+		return Integer.parseInt(getOptionValue(METRICS_PORT));
+	}
 	
 	@Override
 	protected final void validate(){
 		super.validate();
 		String msg = "";
-		if (!new File(getCuckooProcPath()).exists()){
-			msg += "CuckooProcPath not exists!\n";
-			LOGGER.error("CuckooProcPath does not exist! Path used: {}", getCuckooProcPath());
+		if (getCuckooProcPath() != null) {
+			LOGGER.warn("Option cuckooProcPath is deprecated and ignored");
+		}
+		if (getCuckooAddresses().isEmpty()) {
+			msg += "Cuckoo address expected!\n";
+			LOGGER.error("No Cuckoo address given");
+		}
+		if (getRatingsFile() != null && !getRatingsFile().isFile()) {
+			msg += "Ratings file not exists!\n";
+			LOGGER.error("Ratings file does not exist! Path used: {}", getRatingsFile());
+		}
+		msg += validatePositiveNumber(MAX_CONNECTIONS_PER_HOST, Integer.MAX_VALUE);
+		msg += validatePositiveNumber(MAX_CONNECTIONS, Integer.MAX_VALUE);
+		msg += validatePositiveNumber(CONNECT_TIMEOUT, Integer.MAX_VALUE);
+		msg += validatePositiveNumber(READ_TIMEOUT, Integer.MAX_VALUE);
+		msg += validatePositiveNumber(IDLE_TIMEOUT, Long.MAX_VALUE);
+		msg += validatePositiveNumber(ARTIFACT_THREADS, Integer.MAX_VALUE);
+		msg += validatePositiveNumber(ARTIFACTS_PER_NODE, Integer.MAX_VALUE);
+		msg += validatePositiveNumber(NODE_REFRESH, Long.MAX_VALUE);
+		msg += validatePositiveNumber(NODE_QUARANTINE, Long.MAX_VALUE);
+		msg += validatePositiveNumber(BREAKER_THRESHOLD, Integer.MAX_VALUE);
+		msg += validatePositiveNumber(BREAKER_OPEN, Long.MAX_VALUE);
+		msg += validatePositiveNumber(VERDICT_CACHE_TTL, Long.MAX_VALUE);
+		msg += validatePositiveNumber(VERDICT_CACHE_SIZE, Integer.MAX_VALUE);
+		if (!isInRange(getOptionValue(COMPLETION_THREADS), 0, Integer.MAX_VALUE)) {
+			msg += "Number of completion threads expected!\n";
+			LOGGER.error("Invalid number of completion threads: {}", getOptionValue(COMPLETION_THREADS));
+		}
+		if (!isInRange(getOptionValue(QUEUE_DEPTH), 0, Integer.MAX_VALUE)) {
+			msg += "Cuckoo queue depth expected!\n";
+			LOGGER.error("Invalid Cuckoo queue depth: {}", getOptionValue(QUEUE_DEPTH));
+		}
+		if (!isInRange(getOptionValue(URL_VERDICT_WINDOW), 0, Long.MAX_VALUE)) {
+			msg += "URL verdict window in seconds expected!\n";
+			LOGGER.error("Invalid URL verdict window: {}", getOptionValue(URL_VERDICT_WINDOW));
+		}
+		if (!getOptionValue(METRICS_PORT).matches("\\d{1,5}")) {
+			msg += "Metrics port expected!\n";
+			LOGGER.error("Invalid metrics port: {}", getOptionValue(METRICS_PORT));
+		}
+		if (!getOptionValue(REPORT_SPILL_THRESHOLD).matches("\\d{1,9}")) {
+			msg += "Report spill threshold in MB expected!\n";
+			LOGGER.error("Invalid report spill threshold: {}", getOptionValue(REPORT_SPILL_THRESHOLD));
+		}
+		if (getReportSpillDir() != null && !getReportSpillDir().isDirectory()) {
+			msg += "Report spill directory not exists!\n";
+			LOGGER.error("Report spill directory does not exist! Path used: {}", getReportSpillDir());
+		}
+		if (!getStoreEncoding().matches(StoredEncoding.NONE + "|" + StoredEncoding.GZIP + "|" + StoredEncoding.DEFLATE)) {
+			msg += "Store encoding (none, gzip or deflate) expected!\n";
+			LOGGER.error("Invalid store encoding: {}", getStoreEncoding());
+		}
+		if (!getOptionValue(STORE_ENCODING_LEVEL).matches("[1-9]")) {
+			msg += "Compression level (1-9) expected!\n";
+			LOGGER.error("Invalid compression level: {}", getOptionValue(STORE_ENCODING_LEVEL));
 		}
 		if (!"".equals(msg)){
 			throw new IllegalStateException(msg);
 		}
 	}
+
+	/**
+	 * @param max
+	 *            largest value the option's getter can parse, Integer.MAX_VALUE for options read as int
+	 */
+	private String validatePositiveNumber(OptionNameWrapper option, long max) {
+		String value = getOptionValue(option);
+		if (isInRange(value, 1, max)) {
+			return "";
+		}
+		LOGGER.error("Positive number (up to {}) expected, value used: {}", max, value);
+		return "Positive number (up to " + max + ") expected: " + value + "\n";
+	}
+
+	private static boolean isInRange(String value, long min, long max) {
+		if (value == null || !value.matches("\\d+")) {
+			return false;
+		}
+		try {
+			long number = Long.parseLong(value);
+			return number >= min && number <= max;
+		} catch (NumberFormatException e) {
+			LOGGER.debug(e.getMessage(), e);
+			return false;
+		}
+	}
 }
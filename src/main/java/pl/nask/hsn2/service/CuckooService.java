@@ -19,15 +19,31 @@
 
 package pl.nask.hsn2.service;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.daemon.DaemonContext;
 import org.apache.commons.daemon.DaemonController;
 import org.apache.commons.daemon.DaemonInitException;
 
 import pl.nask.hsn2.CommandLineParams;
 import pl.nask.hsn2.ServiceMain;
+import pl.nask.hsn2.connector.CuckooCluster;
+import pl.nask.hsn2.connector.CuckooHttpClient;
 import pl.nask.hsn2.connector.CuckooRESTConnector;
+import pl.nask.hsn2.connector.SubmissionGate;
+import pl.nask.hsn2.metrics.MetricsEndpoint;
+import pl.nask.hsn2.task.ArtifactFetcher;
+import pl.nask.hsn2.task.CuckooCompletionReactor;
 import pl.nask.hsn2.task.CuckooServiceTaskFactory;
+import pl.nask.hsn2.task.Rating;
+import pl.nask.hsn2.task.ReportSpill;
+import pl.nask.hsn2.task.RetryScheduler;
+import pl.nask.hsn2.task.StoredEncoding;
 import pl.nask.hsn2.task.TaskFactory;
+import pl.nask.hsn2.task.UrlSubmissions;
+import pl.nask.hsn2.task.VerdictCache;
 
 public class CuckooService extends ServiceMain {
 
@@ -47,13 +63,47 @@ public class CuckooService extends ServiceMain {
 	
 	@Override
 	protected final void prepareService() {
-		CuckooRESTConnector.setCuckooURL(((CuckooCommandLineParams)getCommandLineParams()).getCuckooAdress());
-
+		CuckooCommandLineParams cmd = (CuckooCommandLineParams) getCommandLineParams();
+		List<String> cuckooAddresses = cmd.getCuckooAddresses();
+		CuckooRESTConnector.setCuckooURL(cuckooAddresses.get(0));
+		if (cuckooAddresses.size() > 1 || cmd.getQueueDepth() > 0) {
+			// submission gate needs load of nodes even if there is only one
+			CuckooCluster.configure(cuckooAddresses, cmd.getNodeRefresh(), cmd.getNodeQuarantine());
+		}
+		SubmissionGate.configure(cmd.getQueueDepth());
+		RetryScheduler.configure(cmd.getBreakerThreshold(), cmd.getBreakerOpen());
+		if (cmd.getRatingsFile() != null) {
+			Rating.configure(cmd.getRatingsFile());
+		}
+		CuckooHttpClient.configure(cmd.getMaxConnectionsPerHost(), cmd.getMaxConnections(), cmd.getConnectTimeout(),
+				cmd.getReadTimeout(), cmd.getIdleTimeout());
+		ArtifactFetcher.configure(cmd.getArtifactThreads(), cmd.getArtifactsPerNode());
+		UrlSubmissions.configure(cmd.getUrlVerdictWindow());
+		ReportSpill.configure(cmd.getReportSpillThreshold(), cmd.getReportSpillDir());
+		StoredEncoding.configure(cmd.getStoreEncoding(), cmd.getStoreEncodingLevel());
+		if (cmd.getMetricsPort() > 0) {
+			try {
+				MetricsEndpoint.start(cmd.getMetricsPort());
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot start metrics endpoint on port " + cmd.getMetricsPort(), e);
+			}
+		}
 	}
 
 	@Override
 	protected final Class<? extends TaskFactory> initializeTaskFactory() {
-		CuckooServiceTaskFactory.prepereForAllThreads((CuckooCommandLineParams)getCommandLineParams());
+		CuckooCommandLineParams cmd = (CuckooCommandLineParams) getCommandLineParams();
+		CuckooCompletionReactor completionReactor = null;
+		if (cmd.getCompletionThreads() > 0) {
+			completionReactor = new CuckooCompletionReactor(cmd.getCompletionThreads());
+		}
+		VerdictCache verdictCache = null;
+		if (cmd.getVerdictCacheFile() != null) {
+			verdictCache = new VerdictCache(cmd.getVerdictCacheFile(), cmd.getVerdictCacheTtl(), TimeUnit.MINUTES,
+					cmd.getVerdictCacheSize());
+			verdictCache.startSaving();
+		}
+		CuckooServiceTaskFactory.prepereForAllThreads(cmd, completionReactor, verdictCache);
 		return CuckooServiceTaskFactory.class;
 	}
 	
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.ResourceException;
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.TaskContext;
+
+/**
+ * Retrieves artifacts of finished analyses (reports, PCAP, screenshots) in parallel. All tasks share one bounded
+ * executor and the number of concurrent downloads from a single Cuckoo node is capped.
+ * <p>
+ * TaskContext gives no thread safety guarantee, so artifacts of one task are uploaded to data store one at a time
+ * (under the job context lock). To keep the lock out of the downloads, each artifact is first downloaded to a spill
+ * file (see {@link #store}), so artifacts of one task are downloaded in parallel and only their uploads are serialized.
+ */
+public final class ArtifactFetcher {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ArtifactFetcher.class);
+
+	public static final int DEFAULT_THREADS = 8;
+	public static final int DEFAULT_PER_NODE = 4;
+
+	private static ExecutorService executor;
+	private static int perNodeLimit;
+	private static final ConcurrentMap<String, Semaphore> NODE_PERMITS = new ConcurrentHashMap<>();
+
+	/**
+	 * Artifact retrieval, performs its own error handling like the sequential version did.
+	 */
+	interface Artifact {
+		void save() throws ResourceException, StorageException;
+	}
+
+	static {
+		configure(DEFAULT_THREADS, DEFAULT_PER_NODE);
+	}
+
+	private ArtifactFetcher() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	public static synchronized void configure(int threads, int perNode) {
+		ExecutorService old = executor;
+		executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("cuckoo-artifacts"));
+		perNodeLimit = perNode;
+		NODE_PERMITS.clear();
+		if (old != null) {
+			old.shutdown();
+		}
+		LOGGER.info("Artifact retrieval: {} threads, {} concurrent downloads per Cuckoo node", threads, perNode);
+	}
+
+	/**
+	 * Saves all artifacts in parallel and waits for them. When some of them fail, the first failure (in the order of
+	 * the list) is rethrown after all have finished.
+	 *
+	 * @throws ResourceException
+	 *             also when interrupted, artifacts already submitted are left to finish
+	 */
+	static void fetchAll(String node, List<Artifact> artifacts) throws ResourceException, StorageException {
+		Semaphore permits = getPermits(node);
+		List<Future<Void>> futures = new ArrayList<>();
+		Throwable failure = null;
+		try {
+			for (Artifact artifact : artifacts) {
+				permits.acquire();
+				futures.add(submit(artifact, permits));
+			}
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// artifacts already submitted are left to finish, so they release their permits
+			Thread.currentThread().interrupt();
+			throw new ResourceException("Interrupted while fetching artifacts", e);
+		}
+		if (failure != null) {
+			rethrow(failure);
+		}
+	}
+
+	/**
+	 * Downloads the stream to a spill file and uploads the file to data store under the job context lock, so the lock
+	 * is held only as long as data store needs to read a local file. The source stream is not closed.
+	 *
+	 * @param artifact
+	 *            artifact name used in metrics, see {@link TaskMetrics}
+	 * @return reference id of stored data
+	 */
+	static long store(TaskContext jobContext, InputStream source, String artifact, TaskResources resources)
+			throws StorageException {
+		Path file = null;
+		try {
+			file = ReportSpill.createFile("cuckoo-" + artifact, ".bin");
+			Files.copy(source, file, StandardCopyOption.REPLACE_EXISTING);
+			long size = Files.size(file);
+			long refId;
+			try (InputStream in = Files.newInputStream(file)) {
+				synchronized (jobContext) {
+					refId = jobContext.saveInDataStore(in);
+				}
+			}
+			resources.stored(size);
+			TaskMetrics.storedBytes(artifact, size);
+			return refId;
+		} catch (IOException e) {
+			throw new StorageException("Could not spill " + artifact + ": " + e.getMessage(), e);
+		} finally {
+			deleteQuietly(file);
+		}
+	}
+
+	private static void deleteQuietly(Path file) {
+		if (file != null) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				LOGGER.warn("Could not delete spill file {}: {}", file, e.getMessage());
+			}
+		}
+	}
+
+	private static Future<Void> submit(final Artifact artifact, final Semaphore permits) {
+		ExecutorService current;
+		synchronized (ArtifactFetcher.class) {
+			current = executor;
+		}
+		try {
+			return current.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws ResourceException, StorageException {
+					try {
+						artifact.save();
+						return null;
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private static void rethrow(Throwable cause) throws ResourceException, StorageException {
+		if (cause instanceof ResourceException) {
+			throw (ResourceException) cause;
+		} else if (cause instanceof StorageException) {
+			throw (StorageException) cause;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		} else {
+			throw new ResourceException(cause.getMessage(), (Exception) cause);
+		}
+	}
+
+	private static Semaphore getPermits(String node) {
+		Semaphore permits = NODE_PERMITS.get(node);
+		if (permits == null) {
+			synchronized (ArtifactFetcher.class) {
+				NODE_PERMITS.putIfAbsent(node, new Semaphore(perNodeLimit, true));
+				permits = NODE_PERMITS.get(node);
+			}
+		}
+		return permits;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Learns how much longer than the requested analysis timeout Cuckoo needs to report a task (queueing, VM start,
+ * processing). Estimates are kept separately for every package/machine pair as exponentially weighted moving averages.
+ */
+public class CompletionEstimator {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CompletionEstimator.class);
+	private static final long DEFAULT_OVERHEAD_MILLIS = 30000;
+	private static final double WEIGHT = 0.2;
+
+	private final ConcurrentMap<String, Estimate> estimates = new ConcurrentHashMap<>();
+
+	public static String key(String cuckooPackage, String machine) {
+		return (cuckooPackage == null ? "default" : cuckooPackage) + "/" + (machine == null ? "any" : machine);
+	}
+
+	public final long getOverheadMillis(String key) {
+		Estimate estimate = estimates.get(key);
+		return estimate == null ? DEFAULT_OVERHEAD_MILLIS : estimate.overheadMillis;
+	}
+
+	/**
+	 * Records overhead observed for one task.
+	 */
+	public final void record(String key, long overheadMillis) {
+		Estimate estimate = estimates.get(key);
+		if (estimate == null) {
+			estimates.putIfAbsent(key, new Estimate());
+			estimate = estimates.get(key);
+		}
+		synchronized (estimate) {
+			long sample = Math.max(0, overheadMillis);
+			if (estimate.samples == 0) {
+				estimate.overheadMillis = sample;
+			} else {
+				estimate.overheadMillis = (long) (WEIGHT * sample + (1 - WEIGHT) * estimate.overheadMillis);
+			}
+			estimate.samples++;
+		}
+		LOGGER.debug("Overhead for {}: observed {} ms, estimated {} ms", new Object[] { key, overheadMillis,
+				estimate.overheadMillis });
+	}
+
+	/**
+	 * Returns current estimates (in milliseconds) for every package/machine pair seen so far.
+	 */
+	public final Map<String, Long> getEstimates() {
+		Map<String, Long> result = new TreeMap<>();
+		for (Map.Entry<String, Estimate> entry : estimates.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().overheadMillis);
+		}
+		return result;
+	}
+
+	public final void logEstimates() {
+		if (!estimates.isEmpty()) {
+			LOGGER.info("Learned Cuckoo processing overhead (ms) per package/machine: {}", getEstimates());
+		}
+	}
+
+	private static final class Estimate {
+		private volatile long overheadMillis = DEFAULT_OVERHEAD_MILLIS;
+		private long samples;
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.ResourceException;
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.connector.CuckooException;
+import pl.nask.hsn2.connector.CuckooRESTConnector;
+import pl.nask.hsn2.connector.CuckooTaskStatus;
+
+/**
+ * Watches Cuckoo tasks that are already submitted. Parked tasks wait in a queue ordered by the time they are expected
+ * to complete: the requested analysis timeout plus the overhead learned for their package and machine. One poller
+ * thread checks status of all tasks that are due with a single batched query, tasks not done yet are polled again with
+ * exponential backoff and jitter. A failed query counts as a missed poll for every task in it, a task fails only when
+ * its own retry budget is used up. Tasks that are done are finished (rating and artifacts) on a small completion pool.
+ */
+public class CuckooCompletionReactor {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CuckooCompletionReactor.class);
+	private static final long MIN_POLL_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+	private static final long MAX_POLL_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(CuckooTask.DEFAULT_ANALYSIS_WAIT_SECS * 2);
+	private static final double JITTER = 0.25;
+	private static final long ESTIMATES_LOG_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	/**
+	 * Task waiting for Cuckoo analysis to finish.
+	 */
+	interface ParkedTask {
+		long getCuckooTaskId();
+
+		/**
+		 * Cuckoo node owning the task id.
+		 */
+		String getCuckooNode();
+
+		boolean isTaskDone(CuckooTaskStatus status) throws ResourceException;
+
+		/**
+		 * Asks Cuckoo about this task alone, used when batched status did not include it.
+		 */
+		boolean isTaskDone() throws ResourceException, CuckooException;
+
+		/**
+		 * Called when polls of the task failed more times in a row than {@link #getPollRetries()}.
+		 *
+		 * @return true if the task should be finished anyway
+		 */
+		boolean isTaskDone(CuckooException pollError) throws ResourceException;
+
+		/**
+		 * Number of failed polls in a row after which the task gives up.
+		 */
+		int getPollRetries();
+
+		void finishTask() throws ResourceException, StorageException;
+	}
+
+	private final DelayQueue<Parked> parkedTasks = new DelayQueue<>();
+	private final CompletionEstimator estimator = new CompletionEstimator();
+	private final Map<String, CuckooRESTConnector> nodeConnectors = new HashMap<>();
+	private final Thread poller;
+	private final ExecutorService completionPool;
+	private volatile boolean shutDown = false;
+	private long estimatesLoggedAt = System.currentTimeMillis();
+
+	public CuckooCompletionReactor(int completionThreads) {
+		completionPool = Executors.newFixedThreadPool(completionThreads, new DaemonThreadFactory("cuckoo-completion"));
+		poller = new DaemonThreadFactory("cuckoo-poller").newThread(new Runnable() {
+			@Override
+			public void run() {
+				pollParkedTasks();
+			}
+		});
+		poller.start();
+	}
+
+	/**
+	 * Parks the task until Cuckoo is done with it. Returned future completes when the task has been finished on the
+	 * completion pool, or is cancelled when the reactor is shut down.
+	 *
+	 * @param analysisTimeout
+	 *            analysis timeout (in seconds) requested from Cuckoo
+	 * @param estimateKey
+	 *            package/machine key, see {@link CompletionEstimator#key(String, String)}
+	 */
+	final Future<Void> park(ParkedTask task, int analysisTimeout, String estimateKey) {
+		Parked parked = new Parked(task, TimeUnit.SECONDS.toMillis(analysisTimeout), estimateKey);
+		parked.nextPollAt = parked.parkedAt + parked.timeoutMillis + estimator.getOverheadMillis(estimateKey);
+		requeue(parked);
+		return parked.future;
+	}
+
+	final int getParkedCount() {
+		return parkedTasks.size();
+	}
+
+	public final CompletionEstimator getEstimator() {
+		return estimator;
+	}
+
+	/**
+	 * Stops polling and cancels futures of all tasks not finished yet, so no worker stays blocked on them. Tasks being
+	 * finished at the moment are interrupted.
+	 */
+	public final void shutdown() {
+		shutDown = true;
+		poller.interrupt();
+		for (Runnable queued : completionPool.shutdownNow()) {
+			// tasks are queued as their own futures, see pollNodeTasks
+			if (queued instanceof Future) {
+				((Future<?>) queued).cancel(false);
+			}
+		}
+		cancelParked();
+	}
+
+	/**
+	 * Adds the task to the queue, or cancels it if the reactor is shut down. The flag is checked after adding, so
+	 * the task is cancelled either here or by {@link #cancelParked()} of a concurrent shutdown.
+	 */
+	private void requeue(Parked parked) {
+		parkedTasks.add(parked);
+		if (shutDown && parkedTasks.remove(parked)) {
+			parked.future.cancel(false);
+		}
+	}
+
+	private void cancelParked() {
+		Parked[] parked = parkedTasks.toArray(new Parked[0]);
+		for (Parked task : parked) {
+			if (parkedTasks.remove(task)) {
+				task.future.cancel(false);
+			}
+		}
+		LOGGER.debug("{} parked tasks cancelled on shutdown", parked.length);
+	}
+
+	private void pollParkedTasks() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Parked first = parkedTasks.poll(1, TimeUnit.MINUTES);
+				if (first != null) {
+					List<Parked> due = new ArrayList<>();
+					due.add(first);
+					parkedTasks.drainTo(due);
+					pollDueTasks(due);
+				}
+				logEstimates();
+			} catch (InterruptedException e) {
+				LOGGER.debug("Poller interrupted", e);
+				return;
+			} catch (RuntimeException e) {
+				LOGGER.error("Polling parked tasks failed", e);
+			}
+		}
+	}
+
+	private void pollDueTasks(List<Parked> due) {
+		Map<String, List<Parked>> byNode = new HashMap<>();
+		for (Parked parked : due) {
+			if (!parked.future.isCancelled()) {
+				String node = parked.task.getCuckooNode();
+				List<Parked> polled = byNode.get(node);
+				if (polled == null) {
+					polled = new ArrayList<>();
+					byNode.put(node, polled);
+				}
+				polled.add(parked);
+			}
+		}
+		for (Map.Entry<String, List<Parked>> entry : byNode.entrySet()) {
+			pollNodeTasks(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Task ids are valid only on the node they were submitted to, so every node is asked about its own tasks.
+	 */
+	private void pollNodeTasks(String node, List<Parked> polled) {
+		List<Long> ids = new ArrayList<>();
+		for (Parked parked : polled) {
+			ids.add(parked.task.getCuckooTaskId());
+		}
+
+		Map<Long, CuckooTaskStatus> statuses = new HashMap<>();
+		CuckooException pollError = null;
+		try {
+			statuses = getConnector(node).getTasksStatus(ids);
+		} catch (CuckooException e) {
+			LOGGER.warn("Cannot get status of {} parked tasks from {}, they will be polled again: {}", new Object[] {
+					polled.size(), node, e.getMessage() });
+			pollError = e;
+		}
+		LOGGER.debug("Polled {} parked tasks on {} ({} waiting), {} found in tasks list", new Object[] { polled.size(),
+				node, parkedTasks.size(), statuses.size() });
+
+		long now = System.currentTimeMillis();
+		for (Parked parked : polled) {
+			if (parked.isDone(statuses.get(parked.task.getCuckooTaskId()), pollError)) {
+				if (pollError == null) {
+					estimator.record(parked.estimateKey, parked.observedOverhead(now));
+				}
+				try {
+					completionPool.execute(parked.future);
+				} catch (RejectedExecutionException e) {
+					LOGGER.debug("Completion pool is shut down", e);
+					parked.future.cancel(false);
+				}
+			} else {
+				parked.reschedule(now);
+				requeue(parked);
+			}
+		}
+	}
+
+	private CuckooRESTConnector getConnector(String node) {
+		CuckooRESTConnector connector = nodeConnectors.get(node);
+		if (connector == null) {
+			connector = new CuckooRESTConnector(node);
+			nodeConnectors.put(node, connector);
+		}
+		return connector;
+	}
+
+	private void logEstimates() {
+		long now = System.currentTimeMillis();
+		if (now - estimatesLoggedAt >= ESTIMATES_LOG_INTERVAL_MILLIS) {
+			estimatesLoggedAt = now;
+			estimator.logEstimates();
+		}
+	}
+
+	private static final class Parked implements Callable<Void>, Delayed {
+		private final ParkedTask task;
+		private final FutureTask<Void> future;
+		private final long timeoutMillis;
+		private final String estimateKey;
+		private final long parkedAt = System.currentTimeMillis();
+		private final long sequence = SEQUENCE.incrementAndGet();
+		private volatile long nextPollAt;
+		private long lastPollAt;
+		private int misses;
+		private int failedPolls;
+		private Exception error;
+
+		Parked(ParkedTask task, long timeoutMillis, String estimateKey) {
+			this.task = task;
+			this.timeoutMillis = timeoutMillis;
+			this.estimateKey = estimateKey;
+			future = new FutureTask<>(this);
+		}
+
+		boolean isDone(CuckooTaskStatus status, CuckooException pollError) {
+			try {
+				if (pollError != null) {
+					return pollFailed(pollError);
+				}
+				try {
+					boolean done = status != null ? task.isTaskDone(status) : task.isTaskDone();
+					failedPolls = 0;
+					return done;
+				} catch (CuckooException e) {
+					return pollFailed(e);
+				}
+			} catch (ResourceException | RuntimeException e) {
+				error = e;
+				return true;
+			}
+		}
+
+		/**
+		 * Failed poll is taken as a poll which found the task not done, so the task is polled again with backoff.
+		 */
+		private boolean pollFailed(CuckooException pollError) throws ResourceException {
+			failedPolls++;
+			if (failedPolls > task.getPollRetries()) {
+				LOGGER.warn("Status of Cuckoo task {} could not be checked {} times in a row", task.getCuckooTaskId(),
+						failedPolls);
+				return task.isTaskDone(pollError);
+			}
+			LOGGER.debug("Poll of Cuckoo task {} failed ({} of {} allowed): {}", new Object[] { task.getCuckooTaskId(),
+					failedPolls, task.getPollRetries(), pollError.getMessage() });
+			return false;
+		}
+
+		void reschedule(long now) {
+			lastPollAt = now;
+			long delay = Math.min(MAX_POLL_DELAY_MILLIS, MIN_POLL_DELAY_MILLIS << Math.min(misses, 16));
+			double jitter = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+			misses++;
+			nextPollAt = now + (long) (delay * jitter);
+		}
+
+		/**
+		 * Task was reported between the last negative poll and now. If the first poll already found it done, the
+		 * estimate was too long, so the overhead is assumed to end one minimal poll delay earlier.
+		 */
+		long observedOverhead(long now) {
+			long reportedAt = lastPollAt == 0 ? now - MIN_POLL_DELAY_MILLIS : (lastPollAt + now) / 2;
+			return reportedAt - parkedAt - timeoutMillis;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			if (error != null) {
+				throw error;
+			}
+			task.finishTask();
+			return null;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(nextPollAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			Parked other = (Parked) o;
+			if (nextPollAt != other.nextPollAt) {
+				return nextPollAt < other.nextPollAt ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
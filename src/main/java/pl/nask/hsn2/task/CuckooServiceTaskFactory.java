@@ -27,13 +27,27 @@ import pl.nask.hsn2.wrappers.ParametersWrapper;
 
 public class CuckooServiceTaskFactory implements TaskFactory {
 
-	private static CuckooCommandLineParams cmd;
+	private static boolean cleanJobData;
+	private static CuckooCompletionReactor completionReactor;
+	private static VerdictCache verdictCache;
 		
 	public static void prepereForAllThreads(CuckooCommandLineParams cmd) {
-		CuckooServiceTaskFactory.cmd = cmd;
+		prepereForAllThreads(cmd, null, null);
+	}
+
+	public static void prepereForAllThreads(CuckooCommandLineParams cmd, CuckooCompletionReactor completionReactor,
+			VerdictCache verdictCache) {
+		prepereForAllThreads(cmd.isCleanJobData(), completionReactor, verdictCache);
+	}
+
+	public static void prepereForAllThreads(boolean cleanJobData, CuckooCompletionReactor completionReactor,
+			VerdictCache verdictCache) {
+		CuckooServiceTaskFactory.cleanJobData = cleanJobData;
+		CuckooServiceTaskFactory.completionReactor = completionReactor;
+		CuckooServiceTaskFactory.verdictCache = verdictCache;
 	}
 
 	public final Task newTask(TaskContext jobContext, ParametersWrapper parameters, ObjectDataWrapper data) throws ParameterException {
-		return new CuckooTask(jobContext, parameters, data, cmd.getCuckooProcPath(), cmd.isCleanJobData());
+		return new CuckooTask(jobContext, parameters, data, cleanJobData, completionReactor, verdictCache);
 	}
 }
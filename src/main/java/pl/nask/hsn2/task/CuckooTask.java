@@ -19,28 +19,37 @@
 
 package pl.nask.hsn2.task;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.httpclient.NameValuePair;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -51,9 +60,11 @@ import pl.nask.hsn2.ParameterException;
 import pl.nask.hsn2.ResourceException;
 import pl.nask.hsn2.StorageException;
 import pl.nask.hsn2.TaskContext;
+import pl.nask.hsn2.connector.CuckooCluster;
 import pl.nask.hsn2.connector.CuckooConnection;
 import pl.nask.hsn2.connector.CuckooException;
 import pl.nask.hsn2.connector.CuckooRESTConnector;
+import pl.nask.hsn2.connector.CuckooTaskStatus;
 import pl.nask.hsn2.wrappers.ObjectDataWrapper;
 import pl.nask.hsn2.wrappers.ParametersWrapper;
 
@@ -61,11 +72,13 @@ public class CuckooTask implements Task {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(CuckooTask.class);
 	private static final String ERROR_KEY = "cuckoo_error";
+	private static final String DURATION_KEY_PREFIX = "cuckoo_duration_";
 	private static final double THRESHOLD_SUSPICIOUS = 1.0;
 	private static final double THRESHOLD_MALICIOUS = 1.5;
 	private static final int DEFAULT_RETRIES = 3;
 	private static final int DEFAULT_RETRY_WAIT = 5;
-	private static final int DEFAULT_ANALYSIS_WAIT_SECS = 30;
+	static final int DEFAULT_ANALYSIS_WAIT_SECS = 30;
+	private static final int DEFAULT_CUCKOO_TIMEOUT_SECS = 120;
 
 	private final TaskContext jobContext;
 	private final ObjectDataWrapper data;
@@ -79,20 +92,38 @@ public class CuckooTask implements Task {
 	private boolean failOnError = false;
 	private int retry = DEFAULT_RETRIES;
 	private int retryWait = DEFAULT_RETRY_WAIT;
+	private int topProcesses = SignatureProcessor.DEFAULT_TOP_PROCESSES;
 	private ParametersWrapper parameters;
-	private String cuckooProcPath;
 	private CuckooRESTConnector cuckooConector;
 	private Set<NameValuePair> cuckooParams = new HashSet<>();
 
 	private boolean cleanJobData;
+	private CuckooCompletionReactor completionReactor;
+	private VerdictCache verdictCache;
+	private final Map<String, String> recordedAttributes = new LinkedHashMap<>();
+	private final Map<String, Long> recordedReferences = new LinkedHashMap<>();
+	private final AtomicBoolean analysing = new AtomicBoolean();
+	private final TaskResources resources = new TaskResources();
 
 	public CuckooTask(TaskContext jobContext, ParametersWrapper parameters, ObjectDataWrapper data,
-			String cuckooProcPath, boolean cleanJobData) throws ParameterException {
+			boolean cleanJobData) throws ParameterException {
+		this(jobContext, parameters, data, cleanJobData, null, null);
+	}
+
+	/**
+	 * If completion reactor is given, the task is parked in it while Cuckoo analyses the object, otherwise the task
+	 * polls Cuckoo on its own. If verdict cache is given, samples already analysed with the same parameters are not
+	 * sent to Cuckoo again.
+	 */
+	public CuckooTask(TaskContext jobContext, ParametersWrapper parameters, ObjectDataWrapper data,
+			boolean cleanJobData, CuckooCompletionReactor completionReactor, VerdictCache verdictCache)
+			throws ParameterException {
 		this.jobContext = jobContext;
 		this.data = data;
-		this.cuckooProcPath = cuckooProcPath;
 		this.parameters = parameters;
 		this.cleanJobData = cleanJobData;
+		this.completionReactor = completionReactor;
+		this.verdictCache = verdictCache;
 		applyParameters();
 		cuckooConector = new CuckooRESTConnector();
 	}
@@ -105,6 +136,7 @@ public class CuckooTask implements Task {
 		failOnError = parameters.getBoolean("fail_on_error", failOnError);
 		retry = parameters.getInt("retry", retry);
 		retryWait = parameters.getInt("retry_wait", retryWait);
+		topProcesses = parameters.getInt("top_processes", topProcesses);
 		extractCuckooParam("timeout", cuckooParams);
 		extractCuckooParam("priority", cuckooParams);
 		extractCuckooParam("package", cuckooParams);
@@ -112,6 +144,61 @@ public class CuckooTask implements Task {
 
 	}
 
+	/**
+	 * Artifacts are saved in parallel and TaskContext is not documented as thread safe, so every call on job context
+	 * (including data store uploads) is made under its own lock. Everything set is recorded for the verdict cache.
+	 */
+	private void addAttribute(String name, String value) {
+		synchronized (jobContext) {
+			jobContext.addAttribute(name, value);
+			recordedAttributes.put(name, value);
+		}
+	}
+
+	private void addReference(String name, long refId) {
+		synchronized (jobContext) {
+			jobContext.addReference(name, refId);
+			recordedReferences.put(name, refId);
+		}
+	}
+
+	/**
+	 * Adds reference to data saved with {@link StoredEncoding#save}, the encoding applied (if any) goes to
+	 * NAME_encoding attribute.
+	 */
+	private void addStoredReference(String name, StoredEncoding.Stored stored) {
+		addReference(name, stored.getRefId());
+		if (stored.getEncoding() != null) {
+			addAttribute(name + StoredEncoding.KEY_SUFFIX, stored.getEncoding());
+		}
+	}
+
+	/**
+	 * Adds duration of a processing phase (in milliseconds) as cuckoo_duration_PHASE attribute. Durations belong to
+	 * this object only, so they are not recorded for the verdict cache.
+	 */
+	private void addDuration(String phase, long millis) {
+		synchronized (jobContext) {
+			jobContext.addAttribute(DURATION_KEY_PREFIX + phase, (int) Math.min(millis, Integer.MAX_VALUE));
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            bytes downloaded from Cuckoo, stored bytes are accounted by {@link StoredEncoding#save}
+	 */
+	private void artifactSaved(String artifact, long bytes) {
+		TaskMetrics.artifactBytes(artifact, bytes);
+		resources.received(bytes);
+	}
+
+	private void addCuckooDuration(String phase, long millis) {
+		if (millis != TaskMetrics.NO_TIME) {
+			TaskMetrics.phaseDuration(phase, millis);
+			addDuration(phase, millis);
+		}
+	}
+
 	private void extractCuckooParam(String paramName, Set<NameValuePair> cuckooParams) {
 		extractCuckooParam(paramName, paramName, cuckooParams);
 	}
@@ -126,78 +213,367 @@ public class CuckooTask implements Task {
 		}
 	}
 
+	private String getCuckooParam(String cuckooParamName) {
+		for (NameValuePair pair : cuckooParams) {
+			if (cuckooParamName.equals(pair.getName())) {
+				return pair.getValue();
+			}
+		}
+		return null;
+	}
+
+	private int getAnalysisTimeout() {
+		String timeout = getCuckooParam("timeout");
+		if (timeout != null) {
+			try {
+				return Integer.parseInt(timeout.trim());
+			} catch (NumberFormatException e) {
+				LOGGER.warn("Invalid timeout: {}, using Cuckoo default", timeout);
+			}
+		}
+		return DEFAULT_CUCKOO_TIMEOUT_SECS;
+	}
+
 	public final boolean takesMuchTime() {
 		return true;
 	}
 
 	public final void process() throws ParameterException, ResourceException, StorageException, InputDataException {
+		TaskMetrics.IN_FLIGHT.inc();
+		long start = System.nanoTime();
+		TaskResources.Measurement measurement = resources.startMeasurement();
+		try {
+			processObject();
+		} finally {
+			measurement.stop();
+			analysisEnded();
+			TaskMetrics.IN_FLIGHT.dec();
+			TaskMetrics.phaseDone(TaskMetrics.TOTAL, start);
+			resources.finished(jobContext.getJobId(), jobContext.getReqId(), cuckooTaskId);
+		}
+	}
+
+	private void processObject() throws ResourceException, StorageException {
 		Long contentId = data.getReferenceId("content");
 
-		boolean sent = false;
+		PartSource sample = null;
+		String verdictKey = null;
+		if (contentId != null) {
+			String fileName = data.getString("filename");
+			MessageDigest md5 = DigestUtils.getMd5Digest();
+			MessageDigest sha256 = DigestUtils.getSha256Digest();
+			if (fileName == null || verdictCache != null) {
+				digestSample(contentId, md5, sha256);
+			}
+			sample = new DataStorePartSource(jobContext, contentId, fileName == null ? Hex.encodeHexString(md5.digest())
+					: fileName, resources);
+			if (verdictCache != null) {
+				verdictKey = VerdictCache.key(Hex.encodeHexString(sha256.digest()), getCuckooParam("package"),
+						getCuckooParam("machine"), getCuckooParam("timeout"));
+				if (applyCachedVerdict(verdictKey)) {
+					return;
+				}
+			}
+		}
+
+		String url = null;
+		UrlSubmissions.Flight flight = null;
+		if (sample == null) {
+			url = prepareUrlForProcessing();
+			flight = boardFlight(url);
+			if (flight == null) {
+				return;
+			}
+		}
+
+		VerdictCache.Verdict verdict = null;
+		try {
+			long submissionStart = System.nanoTime();
+			if (!submitTask(sample, url)) {
+				return;
+			}
+			addDuration(TaskMetrics.SUBMISSION, TaskMetrics.phaseDone(TaskMetrics.SUBMISSION, submissionStart));
+			analysisStarted();
+
+			if (completionReactor != null) {
+				if (!parkUntilFinished()) {
+					return;
+				}
+			} else {
+				if (!waitUntilTaskDone()) {
+					return;
+				}
+				finishTask();
+			}
+
+			verdict = currentVerdict();
+			if (verdictKey != null && verdict != null) {
+				verdictCache.put(verdictKey, verdict);
+			}
+		} finally {
+			if (flight != null) {
+				flight.land(verdict);
+			}
+		}
+	}
+
+	/**
+	 * Sends the sample (or URL, if there is no sample) to the least loaded Cuckoo node, retrying on connection
+	 * problems. Task waits in submission gate while Cuckoo queues are full. Failed node (unreachable, timing out or
+	 * responding with HTTP 5xx) is quarantined and the retry goes to another node at once, if there is a healthy one,
+	 * otherwise it is scheduled by {@link RetryScheduler}. Task refused by Cuckoo (HTTP 4xx) is not retried and does
+	 * not count against the node. All later calls for the task go to the node it was submitted to.
+	 *
+	 * @return false if the task could not be submitted and processing should stop
+	 */
+	private boolean submitTask(PartSource sample, String url) throws ResourceException {
 		int retries = 0;
-		while (!sent) {
+		while (true) {
+			long gateStart = System.nanoTime();
 			try {
-				if (contentId != null) {
-					File file = downloadFile(contentId);
-					cuckooTaskId = cuckooConector.sendFile(file, cuckooParams);
-				} else {
-					String urlForProc = prepareUrlForProcessing();
-					cuckooTaskId = cuckooConector.sendURL(urlForProc, cuckooParams);
-				}
-				sent = true;
-			} catch (CuckooException e) {
-				String msg = e.getMessage();
-				if (retry > 0 && retries < retry) {
-					LOGGER.warn("{} - retry in {} mins...", msg, retryWait);
-					retries++;
-					try {
-						TimeUnit.MINUTES.sleep(retryWait);
-					} catch (InterruptedException ie) {
-						sent = true;
-						return;
+				cuckooConector = CuckooRESTConnector.forNewTask();
+				TaskMetrics.phaseDone(TaskMetrics.GATE, gateStart);
+			} catch (InterruptedException e) {
+				LOGGER.debug("Interrupted while waiting for room in Cuckoo queue", e);
+				return false;
+			}
+			String node = cuckooConector.getCuckooURL();
+			CuckooException failure;
+			String failureCause;
+			if (RetryScheduler.allowRequest(node)) {
+				boolean nodeResponded = false;
+				long submitStart = System.nanoTime();
+				try {
+					if (sample != null) {
+						cuckooTaskId = cuckooConector.sendFile(sample, cuckooParams);
+					} else {
+						cuckooTaskId = cuckooConector.sendURL(url, cuckooParams);
+						resources.sent(url.length());
 					}
-					LOGGER.debug("Retrying ({})...", retries);
-					//continue;
-				} else {
-					LOGGER.error("{} - retry limit ({}) exceeded, aborting...", msg, retry);
-					if (failOnError) {
-						throw new ResourceException("Cannot connect to Cuckoo: " + msg, e);
+					nodeResponded = true;
+					TaskMetrics.phaseDone(TaskMetrics.SUBMIT, submitStart);
+					return true;
+				} catch (CuckooException e) {
+					if (e.isRejected()) {
+						nodeResponded = true;
+						return taskRejected(e);
+					}
+					failure = e;
+					failureCause = e.getReason();
+					if (e.isNodeFailure()) {
+						cuckooConector.reportNodeFailure();
 					} else {
-						jobContext.addAttribute(ERROR_KEY, "Cannot connect to Cuckoo: " + msg);
-						return;
+						nodeResponded = true;
+					}
+				} catch (JSONException e) {
+					nodeResponded = true;
+					return taskRejected(e);
+				} finally {
+					RetryScheduler.recordResult(node, nodeResponded);
+				}
+			} else {
+				failure = new CuckooException("Cuckoo node " + node + " unavailable (circuit open)");
+				failureCause = "circuit_open";
+			}
+
+			String msg = failure.getMessage();
+			if (retry > 0 && retries < retry) {
+				retries++;
+				TaskMetrics.retry(failureCause);
+				if (CuckooCluster.hasHealthyNode()) {
+					LOGGER.warn("{} - retry on another node...", msg);
+				} else {
+					LOGGER.warn("{} - retry in up to {} mins...", msg, retryWait);
+					if (!RetryScheduler.awaitRetry(node, retries, TimeUnit.MINUTES.toMillis(retryWait))) {
+						return false;
 					}
 				}
-			} catch (JSONException e) {
-				String msg = e.getMessage();
-				LOGGER.error("Cuckoo rejected the task: {}", msg);
+				LOGGER.debug("Retrying ({})...", retries);
+			} else {
+				LOGGER.error("{} - retry limit ({}) exceeded, aborting...", msg, retry);
+				TaskMetrics.error(TaskMetrics.SUBMIT, failureCause);
 				if (failOnError) {
-					throw new ResourceException("Cuckoo rejected the task: " + msg, e);
+					throw new ResourceException("Cannot connect to Cuckoo: " + msg, failure);
 				} else {
-					jobContext.addAttribute(ERROR_KEY, "Cuckoo rejected the task: " + msg);
-					return;
+					addAttribute(ERROR_KEY, "Cannot connect to Cuckoo: " + msg);
+					return false;
 				}
 			}
 		}
+	}
+
+	/**
+	 * @return always false, processing of the task stops
+	 */
+	private boolean taskRejected(Exception e) throws ResourceException {
+		TaskMetrics.error(TaskMetrics.SUBMIT, e);
+		String msg = e.getMessage();
+		LOGGER.error("Cuckoo rejected the task: {}", msg);
+		if (failOnError) {
+			throw new ResourceException("Cuckoo rejected the task: " + msg, e);
+		} else {
+			addAttribute(ERROR_KEY, "Cuckoo rejected the task: " + msg);
+			return false;
+		}
+	}
 
+	/**
+	 * @return false if interrupted
+	 */
+	private boolean waitUntilTaskDone() throws ResourceException {
 		boolean done = false;
 		while (!done) {
 			try {
 				TimeUnit.SECONDS.sleep(DEFAULT_ANALYSIS_WAIT_SECS);
 				done = isTaskDone();
 			} catch (InterruptedException e) {
-				done = true;
-				return;
+				return false;
 			}
 		}
+		return true;
+	}
 
+	private void finishTask() throws ResourceException, StorageException {
+		analysisEnded();
 		processDataAndCalculateRating();
+		saveArtifacts();
+		cleanJobData();
+	}
 
-		saveHtmlReport();
-		saveJsonReport();
-		savePcap();
-		saveScreenshots();
+	private void analysisStarted() {
+		if (analysing.compareAndSet(false, true)) {
+			TaskMetrics.ANALYSING.inc();
+		}
+	}
 
-		cleanJobData();
+	private void analysisEnded() {
+		if (analysing.compareAndSet(true, false)) {
+			TaskMetrics.ANALYSING.dec();
+		}
+	}
+
+	/**
+	 * Saves enabled artifacts in parallel, each one handles its errors like when saved alone.
+	 */
+	private void saveArtifacts() throws ResourceException, StorageException {
+		List<ArtifactFetcher.Artifact> artifacts = new ArrayList<>();
+		if (saveReportHtml) {
+			artifacts.add(new ArtifactFetcher.Artifact() {
+				@Override
+				public void save() throws ResourceException, StorageException {
+					saveHtmlReport();
+				}
+			});
+		}
+		if (savePcap) {
+			artifacts.add(new ArtifactFetcher.Artifact() {
+				@Override
+				public void save() throws ResourceException, StorageException {
+					savePcap();
+				}
+			});
+		}
+		if (saveScreenshots) {
+			artifacts.add(new ArtifactFetcher.Artifact() {
+				@Override
+				public void save() throws ResourceException, StorageException {
+					saveScreenshots();
+				}
+			});
+		}
+		if (!artifacts.isEmpty()) {
+			List<ArtifactFetcher.Artifact> measured = new ArrayList<>(artifacts.size());
+			for (ArtifactFetcher.Artifact artifact : artifacts) {
+				measured.add(measured(artifact));
+			}
+			ArtifactFetcher.fetchAll(cuckooConector.getCuckooURL(), measured);
+		}
+	}
+
+	/**
+	 * Artifacts are saved on the artifact pool, so their resources are measured there.
+	 */
+	private ArtifactFetcher.Artifact measured(final ArtifactFetcher.Artifact artifact) {
+		return new ArtifactFetcher.Artifact() {
+			@Override
+			public void save() throws ResourceException, StorageException {
+				TaskResources.Measurement measurement = resources.startMeasurement();
+				try {
+					artifact.save();
+				} finally {
+					measurement.stop();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return false if interrupted
+	 */
+	private boolean parkUntilFinished() throws ResourceException, StorageException {
+		Future<Void> finished = completionReactor.park(new CuckooCompletionReactor.ParkedTask() {
+			@Override
+			public long getCuckooTaskId() {
+				return cuckooTaskId;
+			}
+
+			@Override
+			public String getCuckooNode() {
+				return cuckooConector.getCuckooURL();
+			}
+
+			@Override
+			public boolean isTaskDone(CuckooTaskStatus status) {
+				return CuckooTask.this.isTaskDone(status);
+			}
+
+			@Override
+			public boolean isTaskDone() throws CuckooException {
+				return CuckooTask.this.isTaskDone(new CuckooTaskStatus(cuckooConector.getTaskInfo(cuckooTaskId)));
+			}
+
+			@Override
+			public boolean isTaskDone(CuckooException pollError) throws ResourceException {
+				return CuckooTask.this.isTaskDone(pollError);
+			}
+
+			@Override
+			public int getPollRetries() {
+				return retry;
+			}
+
+			@Override
+			public void finishTask() throws ResourceException, StorageException {
+				TaskResources.Measurement measurement = resources.startMeasurement();
+				try {
+					CuckooTask.this.finishTask();
+				} finally {
+					measurement.stop();
+				}
+			}
+		}, getAnalysisTimeout(), CompletionEstimator.key(getCuckooParam("package"), getCuckooParam("machine")));
+		try {
+			finished.get();
+			return true;
+		} catch (InterruptedException e) {
+			finished.cancel(true);
+			return false;
+		} catch (CancellationException e) {
+			throw new ResourceException("Cuckoo task " + cuckooTaskId + " abandoned, completion reactor shut down", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ResourceException) {
+				throw (ResourceException) cause;
+			} else if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw new ResourceException(cause.getMessage(), (Exception) cause);
+			}
+		}
 	}
 
 	private String prepareUrlForProcessing() {
@@ -221,51 +597,130 @@ public class CuckooTask implements Task {
 		return urlForProc;
 	}
 
-	private File downloadFile(Long contentId) throws StorageException, ResourceException {
+	/**
+	 * Digests of the sample are computed in one separate streaming pass, because they are needed before the sample is
+	 * sent: SHA-256 as verdict cache key (MD5 collisions are cheap, so a crafted sample could get a cached verdict of
+	 * another one) and MD5 as file name, if the object has none.
+	 */
+	private void digestSample(Long contentId, MessageDigest... digests) throws StorageException, ResourceException {
+		InputStream sample = jobContext.getFileAsInputStream(contentId);
 		try {
-			byte[] fileInByte = IOUtils.toByteArray(jobContext.getFileAsInputStream(contentId));
-			String fileName = data.getString("filename");
-
-			if (fileName == null) {
-				fileName = DigestUtils.md5Hex(fileInByte);
+			for (MessageDigest digest : digests) {
+				sample = new DigestInputStream(sample, digest);
 			}
-			File file = new File(cuckooProcPath, fileName);
-			FileUtils.writeByteArrayToFile(file, fileInByte);
-			return file;
+			IOUtils.copy(sample, NullOutputStream.NULL_OUTPUT_STREAM);
 		} catch (IOException e) {
 			throw new ResourceException(e.getMessage(), e);
+		} finally {
+			IOUtils.closeQuietly(sample);
 		}
 	}
 
-	private void saveHtmlReport() throws StorageException, ResourceException {
-		if (saveReportHtml) {
-			try (CuckooConnection conn = cuckooConector.getHtmlReportAsStream(cuckooTaskId)) {
-				long refId = jobContext.saveInDataStore(conn.getBodyAsInputStream());
-				jobContext.addReference("cuckoo_report_html", refId);
-			} catch (CuckooException e) {
-				if (failOnError) {
-					throw new ResourceException(e.getMessage(), e);
-				} else {
-					jobContext.addAttribute(ERROR_KEY, e.getMessage());
-					return;
-				}
-			} catch (IOException e) {
-				LOGGER.warn("Can not close connection.", e);
+	private boolean applyCachedVerdict(String verdictKey) {
+		VerdictCache.Verdict verdict = verdictCache.get(verdictKey);
+		if (verdict == null) {
+			return false;
+		}
+		LOGGER.info("Verdict for {} found in cache, Cuckoo analysis skipped", verdictKey);
+		applyVerdict(verdict);
+		return true;
+	}
+
+	/**
+	 * Tasks share a flight only if they request the same artifacts and top processes, so every follower gets the
+	 * references and attributes it expects.
+	 */
+	private String getFlightKey(String url) {
+		return VerdictCache.key(url, getCuckooParam("package"), getCuckooParam("machine"), getCuckooParam("timeout"))
+				+ "|" + savePcap + "|" + saveReportJson + "|" + saveReportHtml + "|" + saveScreenshots + "|"
+				+ topProcesses;
+	}
+
+	/**
+	 * Follows flights of the URL until one lands with a verdict or this task becomes the leader of a new one.
+	 *
+	 * @return flight to be led by this task or null if the verdict of another task has been applied (or the task was
+	 *         interrupted)
+	 */
+	private UrlSubmissions.Flight boardFlight(String url) {
+		String flightKey = getFlightKey(url);
+		while (true) {
+			UrlSubmissions.Ticket ticket = UrlSubmissions.join(flightKey);
+			if (ticket.isLeader()) {
+				return ticket.getFlight();
+			}
+			if (followFlight(ticket.getFlight(), url)) {
+				return null;
 			}
 		}
 	}
 
-	private void saveJsonReport() throws StorageException, ResourceException {
-		if (saveReportJson) {
-			try (CuckooConnection conn = cuckooConector.getJsonReportAsStream(cuckooTaskId)) {
-				LOGGER.info("Saving JSON report file, status from cuckoo: " + conn.getResultStatusCode());
-				long refId = jobContext.saveInDataStore(conn.getBodyAsInputStream());
-				jobContext.addReference("cuckoo_report_json", refId);
+	/**
+	 * Waits for the verdict of the same URL submitted by another task.
+	 *
+	 * @return false if the leading task did not get a verdict and the URL has to be submitted again
+	 */
+	private boolean followFlight(UrlSubmissions.Flight flight, String url) {
+		LOGGER.debug("URL {} already submitted, waiting for its verdict", url);
+		VerdictCache.Verdict verdict;
+		try {
+			verdict = flight.await();
+		} catch (InterruptedException e) {
+			LOGGER.debug("Interrupted while waiting for verdict", e);
+			return true;
+		}
+		if (verdict == null) {
+			LOGGER.info("No verdict for URL {} from coalesced submission, joining again", url);
+			return false;
+		}
+		LOGGER.info("Verdict for URL {} shared with coalesced submission, Cuckoo analysis skipped", url);
+		applyVerdict(verdict);
+		return true;
+	}
+
+	private void applyVerdict(VerdictCache.Verdict verdict) {
+		boolean sameJob = verdict.getJobId() == jobContext.getJobId();
+		for (Entry<String, String> attribute : verdict.getAttributes().entrySet()) {
+			// encoding is meaningful only with the reference it describes
+			if (sameJob || !attribute.getKey().endsWith(StoredEncoding.KEY_SUFFIX)) {
+				addAttribute(attribute.getKey(), attribute.getValue());
+			}
+		}
+		if (sameJob) {
+			for (Entry<String, Long> reference : verdict.getReferences().entrySet()) {
+				addReference(reference.getKey(), reference.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return verdict of this task or null if it has not been rated
+	 */
+	private VerdictCache.Verdict currentVerdict() {
+		synchronized (jobContext) {
+			if (recordedAttributes.containsKey(ERROR_KEY) || !recordedAttributes.containsKey("cuckoo_classification")) {
+				return null;
+			}
+			return new VerdictCache.Verdict(jobContext.getJobId(), recordedAttributes, recordedReferences);
+		}
+	}
+
+	private void saveHtmlReport() throws StorageException, ResourceException {
+		if (saveReportHtml) {
+			long start = System.nanoTime();
+			try (CuckooConnection conn = cuckooConector.getHtmlReportAsStream(cuckooTaskId)) {
+				CountingInputStream html = new CountingInputStream(conn.getBodyAsInputStream());
+				StoredEncoding.Stored stored = StoredEncoding.spillAndSave(jobContext, html, TaskMetrics.REPORT_HTML,
+						resources);
+				addStoredReference("cuckoo_report_html", stored);
+				artifactSaved(TaskMetrics.REPORT_HTML, html.getByteCount());
+				addDuration(TaskMetrics.REPORT_HTML, TaskMetrics.phaseDone(TaskMetrics.REPORT_HTML, start));
 			} catch (CuckooException e) {
+				TaskMetrics.error(TaskMetrics.REPORT_HTML, e);
 				if (failOnError) {
 					throw new ResourceException(e.getMessage(), e);
 				} else {
-					jobContext.addAttribute(ERROR_KEY, e.getMessage());
+					addAttribute(ERROR_KEY, e.getMessage());
 					return;
 				}
 			} catch (IOException e) {
@@ -274,29 +729,36 @@ public class CuckooTask implements Task {
 		}
 	}
 
+	/**
+	 * Downloads PCAP file to a spill file and stores it, MD5 and SHA1 are computed on the fly.
+	 */
 	private void savePcap() throws StorageException, ResourceException {
 		if (savePcap) {
+			long start = System.nanoTime();
 			try (CuckooConnection conn = cuckooConector.getPcapAsStream(cuckooTaskId)) {
 				LOGGER.info("Saving PCAP file, status from cuckoo: " + conn.getResultStatusCode());
-				Path tempFile = copyToTempFile(conn.getBodyAsInputStream());
-				String md5 = DigestUtils.md5Hex(Files.readAllBytes(tempFile));
-				String sha1 = DigestUtils.shaHex(Files.readAllBytes(tempFile));
-				long refId = jobContext.saveInDataStore(new FileInputStream(tempFile.toFile()));
-				if (!tempFile.toFile().delete()) {
-					LOGGER.warn("Couldn't delete the file: {}", tempFile);
-				}
-
-				jobContext.addReference("cuckoo_pcap", refId);
-				jobContext.addAttribute("cuckoo_pcap_md5", md5);
-				jobContext.addAttribute("cuckoo_pcap_sha1", sha1);
+				MessageDigest md5 = DigestUtils.getMd5Digest();
+				MessageDigest sha1 = DigestUtils.getSha1Digest();
+				CountingInputStream counted = new CountingInputStream(conn.getBodyAsInputStream());
+				InputStream pcap = new DigestInputStream(new DigestInputStream(counted, md5), sha1);
+				StoredEncoding.Stored stored = StoredEncoding.spillAndSave(jobContext, pcap, TaskMetrics.PCAP,
+						resources);
+
+				addStoredReference("cuckoo_pcap", stored);
+				addAttribute("cuckoo_pcap_md5", Hex.encodeHexString(md5.digest()));
+				addAttribute("cuckoo_pcap_sha1", Hex.encodeHexString(sha1.digest()));
+				artifactSaved(TaskMetrics.PCAP, counted.getByteCount());
+				addDuration(TaskMetrics.PCAP, TaskMetrics.phaseDone(TaskMetrics.PCAP, start));
 			} catch (CuckooException e) {
+				TaskMetrics.error(TaskMetrics.PCAP, e);
 				if (failOnError) {
 					throw new ResourceException(e.getMessage(), e);
 				} else {
-					jobContext.addAttribute(ERROR_KEY, e.getMessage());
+					addAttribute(ERROR_KEY, e.getMessage());
 					return;
 				}
 			} catch (IOException e) {
+				TaskMetrics.error(TaskMetrics.PCAP, e);
 				LOGGER.warn("Cannot store PCAP file", e);
 			}
 		}
@@ -304,15 +766,21 @@ public class CuckooTask implements Task {
 
 	private void saveScreenshots() throws StorageException, ResourceException {
 		if (saveScreenshots) {
+			long start = System.nanoTime();
 			try (CuckooConnection conn = cuckooConector.getScreenshotsAsStream(cuckooTaskId)) {
 				LOGGER.info("Saving screenshots, status from cuckoo: " + conn.getResultStatusCode());
-				long refId = jobContext.saveInDataStore(conn.getBodyAsInputStream());
-				jobContext.addReference("cuckoo_screenshot", refId);
+				CountingInputStream screenshots = new CountingInputStream(conn.getBodyAsInputStream());
+				// screenshots come as a zip archive, compressing them again would not pay off
+				long refId = ArtifactFetcher.store(jobContext, screenshots, TaskMetrics.SCREENSHOTS, resources);
+				addReference("cuckoo_screenshot", refId);
+				artifactSaved(TaskMetrics.SCREENSHOTS, screenshots.getByteCount());
+				addDuration(TaskMetrics.SCREENSHOTS, TaskMetrics.phaseDone(TaskMetrics.SCREENSHOTS, start));
 			} catch (CuckooException e) {
+				TaskMetrics.error(TaskMetrics.SCREENSHOTS, e);
 				if (failOnError) {
 					throw new ResourceException(e.getMessage(), e);
 				} else {
-					jobContext.addAttribute(ERROR_KEY, e.getMessage());
+					addAttribute(ERROR_KEY, e.getMessage());
 					return;
 				}
 			} catch (IOException e) {
@@ -328,28 +796,36 @@ public class CuckooTask implements Task {
 	}
 
 	private boolean isTaskDone() throws ResourceException {
-		JSONObject taskInfo;
 		try {
-			taskInfo = cuckooConector.getTaskInfo(cuckooTaskId);
+			return isTaskDone(new CuckooTaskStatus(cuckooConector.getTaskInfo(cuckooTaskId)));
 		} catch (CuckooException e) {
-			if (failOnError) {
-				throw new ResourceException(e.getMessage(), e);
-			} else {
-				jobContext.addAttribute(ERROR_KEY, e.getMessage());
-				return true;
-			}
+			return isTaskDone(e);
 		}
-		String status = taskInfo.getString("status");
-		if ("reported".equals(status)) {
-			jobContext.addAttribute("cuckoo_time_start", taskInfo.getString("started_on"));
-			try {
-				jobContext.addAttribute("cuckoo_time_stop", taskInfo.getString("completed_on"));
-			} catch (JSONException e) {
-				LOGGER.warn(e.getMessage());
+	}
+
+	private boolean isTaskDone(CuckooException pollError) throws ResourceException {
+		TaskMetrics.error(TaskMetrics.POLL, pollError);
+		if (failOnError) {
+			throw new ResourceException(pollError.getMessage(), pollError);
+		} else {
+			addAttribute(ERROR_KEY, pollError.getMessage());
+			return true;
+		}
+	}
+
+	private boolean isTaskDone(CuckooTaskStatus taskStatus) {
+		if (taskStatus.isReported()) {
+			addCuckooDuration(TaskMetrics.QUEUE, TaskMetrics.queueMillis(taskStatus));
+			addCuckooDuration(TaskMetrics.ANALYSIS, TaskMetrics.analysisMillis(taskStatus));
+			addAttribute("cuckoo_time_start", taskStatus.getStartedOn());
+			if (taskStatus.getCompletedOn() != null) {
+				addAttribute("cuckoo_time_stop", taskStatus.getCompletedOn());
+			} else {
+				LOGGER.warn("No \"completed_on\" for task {}", cuckooTaskId);
 				LOGGER.warn("Inserting current date as \"cuckoo_time_stop\"");
 				DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 				Date date = new Date();
-				jobContext.addAttribute("cuckoo_time_stop", dateFormat.format(date));
+				addAttribute("cuckoo_time_stop", dateFormat.format(date));
 			}
 			return true;
 		} else {
@@ -357,38 +833,118 @@ public class CuckooTask implements Task {
 		}
 	}
 
-	private void processDataAndCalculateRating() throws ResourceException {
-		SignatureProcessor sigProcessor = new SignatureProcessor();
+	/**
+	 * Downloads JSON report once, calculates rating from it and, if requested, saves it in data store at the same time.
+	 */
+	private void processDataAndCalculateRating() throws ResourceException, StorageException {
+		SignatureProcessor sigProcessor = new SignatureProcessor(topProcesses);
+		long start = System.nanoTime();
 		try (CuckooConnection conn = cuckooConector.getJsonReportAsStream(cuckooTaskId)) {
-			sigProcessor.process(conn.getBodyAsInputStream());
+			CountingInputStream report = new CountingInputStream(conn.getBodyAsInputStream());
+			try {
+				boolean spill = ReportSpill.isEnabled() && ReportSpill.shouldSpill(conn.getContentLength());
+				if (saveReportJson) {
+					LOGGER.info("Saving JSON report file, status from cuckoo: " + conn.getResultStatusCode());
+				}
+				if (spill) {
+					processSpilledReport(report, sigProcessor);
+				} else if (saveReportJson) {
+					processAndSaveJsonReport(report, sigProcessor);
+				} else {
+					sigProcessor.process(report);
+				}
+			} finally {
+				TaskMetrics.artifactBytes(TaskMetrics.REPORT, report.getByteCount());
+				resources.received(report.getByteCount());
+				resources.report(report.getByteCount(), sigProcessor.getSignatureCount(), sigProcessor.getProcessCount());
+			}
+			addDuration(TaskMetrics.REPORT, TaskMetrics.phaseDone(TaskMetrics.REPORT, start));
 		} catch (IOException | CuckooException e) {
+			TaskMetrics.error(TaskMetrics.REPORT, e);
 			if (failOnError) {
 				throw new ResourceException(e.getMessage(), e);
 			} else {
-				jobContext.addAttribute(ERROR_KEY, e.getMessage());
+				addAttribute(ERROR_KEY, e.getMessage());
 				return;
 			}
 		}
-		Process process = sigProcessor.getMaxRateProcess();
-		StringBuffer reason = new StringBuffer("");
-		double score = 0.0;
-		if (process != null) {
-			reason.append(process.getSignatureNamesAsString());
-			score = process.getScore();
+		addRating(sigProcessor);
+	}
+
+	private void addRating(SignatureProcessor sigProcessor) {
+		addAttribute("cuckoo_classification", classify(sigProcessor.getTotalScore()));
+		addAttribute("cuckoo_classification_reason", sigProcessor.getReason());
+		if (topProcesses > 0) {
+			addAttribute("cuckoo_top_processes", topProcessesAsJson(sigProcessor.getTopProcesses()));
 		}
-		for (Entry<String, Double> entry : sigProcessor.getAdditionalScores().entrySet()) {
-			score += entry.getValue();
-			if (reason.length() > 0) {
-				reason.append(", ");
-			}
-			reason.append(entry.getKey());
+	}
+
+	/**
+	 * @return JSON array of objects with pid, score and signatures of the processes
+	 */
+	static String topProcessesAsJson(List<Process> processes) {
+		JSONArray result = new JSONArray();
+		for (Process process : processes) {
+			JSONObject processJson = new JSONObject();
+			processJson.put("pid", process.getId());
+			processJson.put("score", process.getScore());
+			processJson.put("signatures", new JSONArray(process.getSignatureNames()));
+			result.put(processJson);
+		}
+		return result.toString();
+	}
+
+	private void processAndSaveJsonReport(InputStream report, SignatureProcessor sigProcessor) throws IOException,
+			StorageException {
+		DataStoreTee tee = new DataStoreTee(jobContext, report, resources);
+		IOException processingError = null;
+		try {
+			sigProcessor.process(tee);
+		} catch (IOException e) {
+			processingError = e;
+		} catch (RuntimeException | Error e) {
+			// malformed report, e.g. a value of unexpected type, the data store must not wait for the rest of it
+			tee.abort();
+			throw e;
+		}
+		long storeStart = System.nanoTime();
+		StoredEncoding.Stored stored = tee.finish();
+		addDuration(TaskMetrics.STORE_REPORT, TaskMetrics.phaseDone(TaskMetrics.STORE_REPORT, storeStart));
+		addStoredReference("cuckoo_report_json", stored);
+		if (processingError != null) {
+			throw processingError;
 		}
+	}
 
-		jobContext.addAttribute("cuckoo_classification", calculate(score));
-		jobContext.addAttribute("cuckoo_classification_reason", reason.toString());
+	/**
+	 * Downloads the report to a spill file first, then parses it from memory mapped file while data store reads the
+	 * file on its own.
+	 */
+	private void processSpilledReport(InputStream report, SignatureProcessor sigProcessor) throws IOException,
+			StorageException {
+		try (ReportSpill spill = ReportSpill.spill(report)) {
+			if (saveReportJson) {
+				spill.startStoring(jobContext, resources);
+			}
+			IOException processingError = null;
+			try (InputStream mapped = spill.openMapped()) {
+				sigProcessor.process(mapped);
+			} catch (IOException e) {
+				processingError = e;
+			}
+			if (saveReportJson) {
+				long storeStart = System.nanoTime();
+				StoredEncoding.Stored stored = spill.finishStoring();
+				addDuration(TaskMetrics.STORE_REPORT, TaskMetrics.phaseDone(TaskMetrics.STORE_REPORT, storeStart));
+				addStoredReference("cuckoo_report_json", stored);
+			}
+			if (processingError != null) {
+				throw processingError;
+			}
+		}
 	}
 
-	private String calculate(double score) {
+	static String classify(double score) {
 		if (score >= THRESHOLD_MALICIOUS) {
 			return "malicious";
 		}
@@ -397,11 +953,4 @@ public class CuckooTask implements Task {
 		}
 		return "benign";
 	}
-
-	private Path copyToTempFile(InputStream is) throws IOException {
-		Path tempFile = Files.createTempFile(jobContext.getJobId() + "_" + jobContext.getReqId(), "_cuckoo_pcap");
-		Files.copy(is, tempFile, StandardCopyOption.REPLACE_EXISTING);
-		is.close();
-		return tempFile;
-	}
 }
\ No newline at end of file
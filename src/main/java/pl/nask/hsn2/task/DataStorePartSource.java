@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.httpclient.methods.multipart.PartSource;
+import org.apache.commons.io.input.ProxyInputStream;
+
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.TaskContext;
+
+/**
+ * Multipart source reading the sample straight from data store. Its length is unknown, so the request is sent with
+ * chunked transfer encoding and the sample is never held in memory or on disk.
+ */
+class DataStorePartSource implements PartSource {
+	private final TaskContext jobContext;
+	private final long contentId;
+	private final String fileName;
+	private final TaskResources resources;
+
+	DataStorePartSource(TaskContext jobContext, long contentId, String fileName, TaskResources resources) {
+		this.jobContext = jobContext;
+		this.contentId = contentId;
+		this.fileName = fileName;
+		this.resources = resources;
+	}
+
+	@Override
+	public long getLength() {
+		return -1;
+	}
+
+	@Override
+	public String getFileName() {
+		return fileName;
+	}
+
+	@Override
+	public InputStream createInputStream() throws IOException {
+		try {
+			return new ProxyInputStream(jobContext.getFileAsInputStream(contentId)) {
+				@Override
+				protected void afterRead(int n) {
+					if (n > 0) {
+						resources.sent(n);
+					}
+				}
+			};
+		} catch (StorageException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.TaskContext;
+
+/**
+ * Input stream which passes everything it reads to the data store. The data store reads its copy on another thread
+ * through a bounded pipe, so a stream downloaded once can be processed and stored at the same time.
+ */
+final class DataStoreTee extends FilterInputStream {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DataStoreTee.class);
+	private static final int PIPE_SIZE = 1024 * 1024;
+	/**
+	 * Threads feeding data store, shared with {@link ReportSpill}.
+	 */
+	static final ExecutorService STORING_POOL = Executors.newCachedThreadPool(new DaemonThreadFactory("cuckoo-store"));
+
+	private final PipedInputStream pipeIn;
+	private final PipedOutputStream pipeOut;
+	private final Future<StoredEncoding.Stored> stored;
+	private boolean branchBroken = false;
+	private volatile boolean aborted = false;
+
+	/**
+	 * @param resources
+	 *            resources of the task, the storing thread (which also encodes stored data) is measured as its work
+	 */
+	DataStoreTee(final TaskContext jobContext, InputStream source, final TaskResources resources) throws IOException {
+		super(source);
+		pipeOut = new PipedOutputStream();
+		pipeIn = new PipedInputStream(pipeOut, PIPE_SIZE);
+		stored = STORING_POOL.submit(new Callable<StoredEncoding.Stored>() {
+			@Override
+			public StoredEncoding.Stored call() throws StorageException {
+				TaskResources.Measurement measurement = resources.startMeasurement();
+				try {
+					InputStream copy = new AbortableInputStream(pipeIn);
+					return StoredEncoding.save(jobContext, copy, TaskMetrics.REPORT, resources);
+				} finally {
+					measurement.stop();
+					IOUtils.closeQuietly(pipeIn);
+				}
+			}
+		});
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1 && !branchBroken) {
+			try {
+				pipeOut.write(b);
+			} catch (IOException e) {
+				branchFailed(e);
+			}
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if (read > 0 && !branchBroken) {
+			try {
+				pipeOut.write(b, off, read);
+			} catch (IOException e) {
+				branchFailed(e);
+			}
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		return IOUtils.skip(this, n);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Reads the rest of the source, so the data store gets a complete copy, and waits until it is stored.
+	 *
+	 * @return reference id and encoding of stored data
+	 */
+	StoredEncoding.Stored finish() throws IOException, StorageException {
+		try {
+			IOUtils.copy(this, NullOutputStream.NULL_OUTPUT_STREAM);
+		} catch (IOException e) {
+			abort();
+			throw e;
+		} finally {
+			IOUtils.closeQuietly(pipeOut);
+		}
+		try {
+			return stored.get();
+		} catch (InterruptedException e) {
+			stored.cancel(true);
+			throw new StorageException("Interrupted while storing data", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new StorageException(cause.getMessage(), (Exception) cause);
+		}
+	}
+
+	/**
+	 * Makes the data store fail instead of storing an incomplete copy and releases the storing thread. Has to be
+	 * called whenever the stream is not going to be {@link #finish() finished}, otherwise the storing thread waits
+	 * for the rest of the data forever.
+	 */
+	void abort() {
+		aborted = true;
+		// wakes up the storing thread, it sees the end of the copy and fails
+		IOUtils.closeQuietly(pipeOut);
+	}
+
+	private void branchFailed(IOException e) {
+		branchBroken = true;
+		LOGGER.warn("Data store stopped reading the stream: {}", e.getMessage());
+	}
+
+	/**
+	 * Reading side of the pipe, fails once the copy is aborted.
+	 */
+	private final class AbortableInputStream extends FilterInputStream {
+		AbortableInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return checkAborted(super.read());
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return checkAborted(super.read(b, off, len));
+		}
+
+		private int checkAborted(int result) throws IOException {
+			if (aborted) {
+				throw new IOException("Copy of the stream aborted");
+			}
+			return result;
+		}
+	}
+}
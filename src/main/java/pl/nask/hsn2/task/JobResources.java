@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Totals of {@link TaskResources} per job. Jobs with new tasks are logged once a minute (logger
+ * pl.nask.hsn2.task.resources), totals of the least recently active jobs are dropped when too many jobs are kept.
+ */
+final class JobResources {
+	private static final Logger LOGGER = LoggerFactory.getLogger("pl.nask.hsn2.task.resources");
+	private static final long LOG_INTERVAL_SECS = 60;
+	private static final int MAX_JOBS = 1000;
+
+	private static final Map<Long, Totals> JOBS = new LinkedHashMap<Long, Totals>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Totals> eldest) {
+			return size() > MAX_JOBS;
+		}
+	};
+
+	private static final class Totals {
+		private final long jobId;
+		private long tasks;
+		private long cpuNanos;
+		private long allocatedBytes;
+		private long sentBytes;
+		private long receivedBytes;
+		private long storedBytes;
+		private boolean changed;
+
+		Totals(long jobId) {
+			this.jobId = jobId;
+		}
+	}
+
+	static {
+		Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cuckoo-job-resources")).scheduleWithFixedDelay(
+				new Runnable() {
+					@Override
+					public void run() {
+						logChangedJobs();
+					}
+				}, LOG_INTERVAL_SECS, LOG_INTERVAL_SECS, TimeUnit.SECONDS);
+	}
+
+	private JobResources() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	static void add(long jobId, TaskResources task) {
+		synchronized (JOBS) {
+			Totals totals = JOBS.get(jobId);
+			if (totals == null) {
+				totals = new Totals(jobId);
+				JOBS.put(jobId, totals);
+			}
+			totals.tasks++;
+			totals.cpuNanos += task.getCpuNanos();
+			totals.allocatedBytes += task.getAllocatedBytes();
+			totals.sentBytes += task.getSentBytes();
+			totals.receivedBytes += task.getReceivedBytes();
+			totals.storedBytes += task.getStoredBytes();
+			totals.changed = true;
+		}
+	}
+
+	private static void logChangedJobs() {
+		List<Object[]> changed = new ArrayList<>();
+		synchronized (JOBS) {
+			for (Totals totals : JOBS.values()) {
+				if (totals.changed) {
+					totals.changed = false;
+					changed.add(new Object[] { totals.jobId, totals.tasks, totals.cpuNanos / 1000000,
+							totals.allocatedBytes, totals.sentBytes, totals.receivedBytes, totals.storedBytes });
+				}
+			}
+		}
+		for (Object[] totals : changed) {
+			LOGGER.info("job={} tasks={} cpu_ms={} alloc_bytes={} sent_bytes={} received_bytes={} stored_bytes={}",
+					totals);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map with primitive long keys, open addressing with linear probing. Null values are not supported.
+ */
+final class LongObjectMap<V> {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] keys = new long[INITIAL_CAPACITY];
+	private Object[] values = new Object[INITIAL_CAPACITY];
+	private int size;
+
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		return (V) values[slotOf(keys, values, key)];
+	}
+
+	void put(long key, V value) {
+		int slot = slotOf(keys, values, key);
+		if (values[slot] == null) {
+			size++;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (size * 2 > keys.length) {
+			resize();
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	List<V> values() {
+		List<V> result = new ArrayList<>(size);
+		for (Object value : values) {
+			if (value != null) {
+				result.add((V) value);
+			}
+		}
+		return result;
+	}
+
+	private void resize() {
+		long[] newKeys = new long[keys.length * 2];
+		Object[] newValues = new Object[values.length * 2];
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null) {
+				int slot = slotOf(newKeys, newValues, keys[i]);
+				newKeys[slot] = keys[i];
+				newValues[slot] = values[i];
+			}
+		}
+		keys = newKeys;
+		values = newValues;
+	}
+
+	private static int slotOf(long[] keys, Object[] values, long key) {
+		int mask = keys.length - 1;
+		int i = spread(key) & mask;
+		while (values[i] != null && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private static int spread(long key) {
+		int hash = (int) (key ^ (key >>> 32));
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -19,9 +19,10 @@
 
 package pl.nask.hsn2.task;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,20 +30,39 @@ import org.slf4j.LoggerFactory;
 public class Process implements Comparable<Process> {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(Process.class);
-	private Long id;
-	private Set<String> signatureNames = new HashSet<>();
-	private Set<String> skipped = new HashSet<>();
+	private long id;
+	// ids of signatures, see RatingTable#getId(String)
+	private BitSet signatures = new BitSet();
 	private double score = 0.0;
+	private final RatingTable ratings;
 
 	public Process(Long id, String signatureName) {
+		this(id, signatureName, Rating.getTable());
+	}
+
+	/**
+	 * Process rated with the given ratings snapshot.
+	 *
+	 * @throws NoSuchElementException
+	 *             if the signature has no rate
+	 */
+	public Process(Long id, String signatureName, RatingTable ratings) {
+		this(id, ratings);
+		int signatureId = ratings.getId(signatureName);
+		if (signatureId == -1) {
+			throw new NoSuchElementException("No rate for: " + signatureName);
+		}
+		addSignature(signatureId);
+	}
+
+	Process(long id, RatingTable ratings) {
 		this.id = id;
-		signatureNames.add(signatureName);
-		score = Rating.getValue(signatureName);
+		this.ratings = ratings;
 	}
 
 	public final String getSignatureNamesAsString() {
-		StringBuffer out = new StringBuffer("");
-		for(String name : signatureNames){
+		StringBuilder out = new StringBuilder();
+		for (String name : getSignatureNames()) {
 			if(out.length() > 0){
 				out.append(", ");
 			}
@@ -51,27 +71,44 @@ public class Process implements Comparable<Process> {
 		return out.toString();
 	}
 
+	public final List<String> getSignatureNames() {
+		List<String> names = new ArrayList<>(signatures.cardinality());
+		for (int i = signatures.nextSetBit(0); i >= 0; i = signatures.nextSetBit(i + 1)) {
+			names.add(ratings.getName(i));
+		}
+		return names;
+	}
+
 	public final double getScore() {
 		return score;
 	}
 
 	public final void addSignature(String name){
-		try{
-			double d = Rating.getValue(name);
-			if(signatureNames.add(name)){
-				score =+ d;
-			}
+		int signatureId = ratings.getId(name);
+		if (signatureId != -1) {
+			addSignature(signatureId);
+		} else {
+			LOGGER.warn("No rate for: " + name + " skipped.");
 		}
-		catch (NoSuchElementException e) {
-			skipped.add(name);
-			LOGGER.warn(e.getMessage() +" added to skipped list.");
+	}
+
+	/**
+	 * Score of the process is the sum of rates of its distinct signatures.
+	 *
+	 * @return true if the signature is new for the process
+	 */
+	final boolean addSignature(int signatureId) {
+		if (signatures.get(signatureId)) {
+			return false;
 		}
+		signatures.set(signatureId);
+		score += ratings.getRate(signatureId);
+		return true;
 	}
 
 	public final Long getId(){
 		return id;
 	}
-
 	@Override
 	public final int compareTo(Process o) {
 		if(score < o.score){
@@ -19,46 +19,151 @@
 
 package pl.nask.hsn2.task;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.NoSuchElementException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Holds current table of signature ratings. Ratings are loaded from ratings.conf on the classpath (or from the working
+ * directory, as before) unless a file is configured; the configured file is watched and every change swaps in a new
+ * table at once. Users which need consistent ratings take one {@link #getTable() snapshot} and use it throughout.
+ */
 public final class Rating {
-
-	private static Map<String,Double> rates = new HashMap<>();
 	private static final Logger LOGGER = LoggerFactory.getLogger(Rating.class);
+	private static final String RATINGS_RESOURCE = "ratings.conf";
+	private static final String RATINGS_FILE = "src/main/resources/ratings.conf";
+	private static final long QUIET_PERIOD_MILLIS = 500;
+
+	private static volatile RatingTable table;
+	private static WatchService watchService;
 
 	private Rating() {
 		// this class cannot be instantiated, it's utility class
 	}
 
-	static{
-		LOGGER.info("Load ratings from file: "+ new File("src/main/resources/ratings.conf").getAbsolutePath());
-		try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream("src/main/resources/ratings.conf")))){
-			for(String line = reader.readLine(); line != null; line = reader.readLine()){
-				String[] tokens = line.split("=");
-				rates.put(tokens[0], Double.valueOf(tokens[1]));
+	static {
+		InputStream resource = Rating.class.getClassLoader().getResourceAsStream(RATINGS_RESOURCE);
+		try {
+			if (resource != null) {
+				LOGGER.info("Load ratings from classpath: {}", RATINGS_RESOURCE);
+				table = read(resource);
+			} else {
+				LOGGER.info("Load ratings from file: " + new File(RATINGS_FILE).getAbsolutePath());
+				table = read(Files.newInputStream(new File(RATINGS_FILE).toPath()));
 			}
-		} catch (IOException e) {
+		} catch (IOException | IllegalArgumentException e) {
 			throw new IllegalStateException(e.getMessage(), e);
 		}
 	}
 
+	/**
+	 * Loads ratings from the given file and reloads them whenever the file changes.
+	 */
+	public static synchronized void configure(File file) {
+		Path path = file.getAbsoluteFile().toPath();
+		try {
+			table = read(Files.newInputStream(path));
+		} catch (IOException | IllegalArgumentException e) {
+			throw new IllegalStateException("Cannot load ratings from " + path + ": " + e.getMessage(), e);
+		}
+		LOGGER.info("Loaded {} ratings from file: {}", table.size(), path);
+		watch(path);
+	}
+
+	public static RatingTable getTable() {
+		return table;
+	}
+
 	public static double getValue(String name) {
-		Double value = rates.get(name);
-		if (value != null){
-			return value.doubleValue();
-		} else{
-			throw new NoSuchElementException("No rate for: "+ name);
+		return table.getValue(name);
+	}
+
+	private static RatingTable read(InputStream in) throws IOException {
+		try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+			return RatingTable.read(reader);
 		}
+	}
 
+	private static void watch(final Path path) {
+		try {
+			if (watchService != null) {
+				watchService.close();
+			}
+			final WatchService watcher = FileSystems.getDefault().newWatchService();
+			path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			watchService = watcher;
+			new DaemonThreadFactory("cuckoo-ratings-watcher").newThread(new Runnable() {
+				@Override
+				public void run() {
+					watchRatings(watcher, path);
+				}
+			}).start();
+		} catch (IOException e) {
+			LOGGER.warn("Cannot watch ratings file " + path + ", changes will not be reloaded", e);
+		}
+	}
+
+	/**
+	 * Reloads ratings when the file has not changed for {@value #QUIET_PERIOD_MILLIS} ms, so a file being written is
+	 * not read half way.
+	 */
+	private static void watchRatings(WatchService watcher, Path path) {
+		try {
+			while (true) {
+				if (isChanged(watcher.take(), path)) {
+					WatchKey key = watcher.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+					while (key != null) {
+						isChanged(key, path);
+						key = watcher.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+					}
+					reload(path);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			LOGGER.debug("Ratings watcher stopped", e);
+		}
+	}
+
+	private static boolean isChanged(WatchKey key, Path path) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (path.getFileName().equals(event.context())) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Swaps in new table; if the file cannot be read or is empty the current table is kept.
+	 */
+	private static void reload(Path path) {
+		try {
+			RatingTable reloaded = read(Files.newInputStream(path));
+			if (reloaded.size() == 0 && table.size() > 0) {
+				LOGGER.warn("Ratings file {} is empty, keeping current ratings", path);
+				return;
+			}
+			table = reloaded;
+			LOGGER.info("Reloaded {} ratings from file: {}", reloaded.size(), path);
+		} catch (IOException | IllegalArgumentException e) {
+			LOGGER.warn("Cannot reload ratings from {}, keeping current ones: {}", path, e.getMessage());
+		}
 	}
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable table of signature ratings. Every signature gets a dense id (its position in the file), interned names and
+ * rates are kept in arrays indexed by id. Names are looked up by open addressing with linear probing.
+ */
+public final class RatingTable {
+	private static final double MAX_LOAD = 0.5;
+	private static final int EMPTY = -1;
+
+	private final String[] names;
+	private final double[] rates;
+	private final int[] slots;
+	private final int mask;
+
+	private RatingTable(Map<String, Double> entries) {
+		int capacity = Integer.highestOneBit(Math.max(2, (int) (entries.size() / MAX_LOAD)) - 1) << 1;
+		names = new String[entries.size()];
+		rates = new double[entries.size()];
+		slots = new int[capacity];
+		Arrays.fill(slots, EMPTY);
+		mask = capacity - 1;
+		int id = 0;
+		for (Map.Entry<String, Double> entry : entries.entrySet()) {
+			names[id] = entry.getKey().intern();
+			rates[id] = entry.getValue();
+			slots[slotOf(names[id])] = id;
+			id++;
+		}
+	}
+
+	/**
+	 * Reads lines {@code name=rate}. Empty lines and lines starting with '#' are skipped. Rates cannot be negative,
+	 * process scores only grow as signatures are added (see {@link TopProcesses}).
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a line cannot be parsed or its rate is negative
+	 */
+	public static RatingTable read(Reader source) throws IOException {
+		Map<String, Double> entries = new LinkedHashMap<>();
+		BufferedReader reader = new BufferedReader(source);
+		int lineNumber = 0;
+		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			int separator = line.indexOf('=');
+			if (separator <= 0) {
+				throw new IllegalArgumentException("Invalid rating in line " + lineNumber + ": " + line);
+			}
+			double rate;
+			try {
+				rate = Double.parseDouble(line.substring(separator + 1).trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid rating in line " + lineNumber + ": " + line, e);
+			}
+			if (!(rate >= 0)) {
+				throw new IllegalArgumentException("Negative rating in line " + lineNumber + ": " + line);
+			}
+			entries.put(line.substring(0, separator).trim(), rate);
+		}
+		return new RatingTable(entries);
+	}
+
+	public double getValue(String name) {
+		int id = getId(name);
+		if (id != EMPTY) {
+			return rates[id];
+		} else {
+			throw new NoSuchElementException("No rate for: " + name);
+		}
+	}
+
+	public boolean contains(String name) {
+		return getId(name) != EMPTY;
+	}
+
+	/**
+	 * @return id of the signature or -1 if it has no rate
+	 */
+	public int getId(String name) {
+		return slots[slotOf(name)];
+	}
+
+	public String getName(int id) {
+		return names[id];
+	}
+
+	public double getRate(int id) {
+		return rates[id];
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * @return slot holding id of the name or the empty slot where it belongs
+	 */
+	private int slotOf(String name) {
+		int i = spread(name.hashCode()) & mask;
+		while (slots[i] != EMPTY && names[slots[i]] != name && !names[slots[i]].equals(name)) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
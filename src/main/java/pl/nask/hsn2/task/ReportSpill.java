@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.TaskContext;
+
+/**
+ * Report downloaded to a local file, used for reports too large to be held between the socket and two consumers. The
+ * parser reads the file through memory mapped windows and the data store reads it straight from the file, so heap use
+ * does not depend on the report size. The file is deleted on {@link #close()}.
+ */
+public final class ReportSpill implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReportSpill.class);
+	private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+	private static volatile long threshold = 0;
+	private static volatile File directory = null;
+
+	private final Path file;
+	private final long length;
+	private Future<StoredEncoding.Stored> stored;
+
+	private ReportSpill(Path file) throws IOException {
+		this.file = file;
+		this.length = Files.size(file);
+	}
+
+	/**
+	 * @param thresholdBytes
+	 *            reports larger than that are spilled, 0 disables spilling
+	 * @param spillDirectory
+	 *            directory of spill files, null means default temporary directory
+	 */
+	public static void configure(long thresholdBytes, File spillDirectory) {
+		threshold = thresholdBytes;
+		directory = spillDirectory;
+		if (thresholdBytes > 0) {
+			LOGGER.info("Reports larger than {} bytes are spilled to {}", thresholdBytes,
+					spillDirectory == null ? System.getProperty("java.io.tmpdir") : spillDirectory);
+		}
+	}
+
+	static boolean isEnabled() {
+		return threshold > 0;
+	}
+
+	/**
+	 * Report is spilled if it is larger than the threshold. A report of unknown length is always spilled, it is copied
+	 * to the file as it arrives, so nothing is buffered on the heap to find its length.
+	 *
+	 * @param contentLength
+	 *            length of the report or -1 if unknown
+	 */
+	static boolean shouldSpill(long contentLength) {
+		return contentLength < 0 || contentLength > threshold;
+	}
+
+	/**
+	 * Copies the rest of the report to a new spill file.
+	 */
+	static ReportSpill spill(InputStream report) throws IOException {
+		Path file = createFile("cuckoo-report", ".json");
+		try {
+			Files.copy(report, file, StandardCopyOption.REPLACE_EXISTING);
+			ReportSpill spill = new ReportSpill(file);
+			LOGGER.debug("Report spilled to {}, {} bytes", file, spill.length);
+			return spill;
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates an empty file in the spill directory, artifacts are spilled there too (see {@link ArtifactFetcher}).
+	 */
+	static Path createFile(String prefix, String suffix) throws IOException {
+		File current = directory;
+		return current == null ? Files.createTempFile(prefix, suffix) : Files.createTempFile(current.toPath(), prefix,
+				suffix);
+	}
+
+	long length() {
+		return length;
+	}
+
+	/**
+	 * Stream reading the file through memory mapped windows.
+	 */
+	InputStream openMapped() throws IOException {
+		return new MappedFileInputStream(FileChannel.open(file, StandardOpenOption.READ), MAP_WINDOW);
+	}
+
+	/**
+	 * Starts storing the file in data store on the storing pool, see {@link #finishStoring()}.
+	 */
+	void startStoring(final TaskContext jobContext, final TaskResources resources) {
+		stored = DataStoreTee.STORING_POOL.submit(new Callable<StoredEncoding.Stored>() {
+			@Override
+			public StoredEncoding.Stored call() throws StorageException, IOException {
+				TaskResources.Measurement measurement = resources.startMeasurement();
+				try (InputStream in = Files.newInputStream(file)) {
+					return StoredEncoding.save(jobContext, in, TaskMetrics.REPORT, resources);
+				} finally {
+					measurement.stop();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return reference id and encoding of stored report
+	 */
+	StoredEncoding.Stored finishStoring() throws StorageException {
+		try {
+			return stored.get();
+		} catch (InterruptedException e) {
+			stored.cancel(true);
+			throw new StorageException("Interrupted while storing data", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new StorageException(cause.getMessage(), (Exception) cause);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (stored != null && !stored.isDone()) {
+			// data store still reads the file, it is deleted when the storing is over
+			try {
+				stored.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				LOGGER.debug("Storing spilled report failed", e);
+			}
+		}
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Maps a window of the file at a time ({@value #MAP_WINDOW} bytes for reports), so files larger than 2 GB can be
+	 * read and address space use stays bounded.
+	 */
+	static final class MappedFileInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long size;
+		private final long windowSize;
+		private long windowStart;
+		private MappedByteBuffer window;
+
+		MappedFileInputStream(FileChannel channel, long windowSize) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			this.windowSize = windowSize;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!ensureWindow()) {
+				return -1;
+			}
+			return window.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!ensureWindow()) {
+				return -1;
+			}
+			int n = Math.min(len, window.remaining());
+			window.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return window == null ? 0 : window.remaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			window = null;
+			channel.close();
+		}
+
+		private boolean ensureWindow() throws IOException {
+			while (window == null || !window.hasRemaining()) {
+				long next = window == null ? 0 : windowStart + window.capacity();
+				if (next >= size) {
+					return false;
+				}
+				windowStart = next;
+				window = channel.map(FileChannel.MapMode.READ_ONLY, next, Math.min(windowSize, size - next));
+			}
+			return true;
+		}
+	}
+}
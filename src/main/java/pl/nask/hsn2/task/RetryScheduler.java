@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.connector.CuckooCluster;
+
+/**
+ * Schedules retries of failed submissions and keeps a circuit breaker for every Cuckoo node. Waiting tasks are woken
+ * by a shared timer with exponential backoff and jitter, not by their own sleeps, so they can be released early
+ * (spread in time) as soon as the node is known to work again.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the circuit of the node opens: requests to it fail fast and
+ * waiting tasks are deferred until it is probed again. When the open period passes, one task is let through as a
+ * probe. Its success closes the circuit, its failure opens it again for twice as long.
+ * <p>
+ * The node is kept in {@link CuckooCluster} quarantine while its circuit is open or probed, so new tasks are not sent
+ * to it only to fail fast. Closing the circuit ends the quarantine.
+ */
+public final class RetryScheduler {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RetryScheduler.class);
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_SECS = 60;
+	private static final long BASE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+	private static final int MAX_OPEN_DOUBLINGS = 4;
+	private static final double JITTER = 0.25;
+	private static final long MAX_RELEASE_SPREAD_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	private static final long RELEASE_SPREAD_PER_TASK_MILLIS = 200;
+
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+			new DaemonThreadFactory("cuckoo-retry"));
+	private static final ConcurrentMap<String, Breaker> BREAKERS = new ConcurrentHashMap<>();
+	private static volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private static volatile long openMillis = TimeUnit.SECONDS.toMillis(DEFAULT_OPEN_SECS);
+
+	private RetryScheduler() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	public static void configure(int threshold, long openSecs) {
+		failureThreshold = threshold;
+		openMillis = TimeUnit.SECONDS.toMillis(openSecs);
+		BREAKERS.clear();
+		LOGGER.info("Cuckoo circuit breaker opens after {} failures for {} s", threshold, openSecs);
+	}
+
+	/**
+	 * @return false if circuit of the node is open and request should fail fast
+	 */
+	static boolean allowRequest(String node) {
+		return getBreaker(node).allowRequest(System.currentTimeMillis());
+	}
+
+	/**
+	 * Records the result of a request let through by {@link #allowRequest(String)}.
+	 */
+	static void recordResult(String node, boolean success) {
+		Breaker breaker = getBreaker(node);
+		if (success) {
+			breaker.success();
+		} else {
+			breaker.failure(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Waits before retry number {@code attempt} (counted from 1). Delay grows exponentially up to
+	 * {@code maxDelayMillis}; while the circuit of the node is open, the task waits at least until the node is probed
+	 * again.
+	 *
+	 * @return false if interrupted
+	 */
+	static boolean awaitRetry(String node, int attempt, long maxDelayMillis) {
+		long backoff = Math.min(maxDelayMillis, BASE_DELAY_MILLIS << Math.min(attempt - 1, 16));
+		long delay = jitter(backoff);
+		CountDownLatch released = new CountDownLatch(1);
+		getBreaker(node).defer(released, delay, System.currentTimeMillis());
+		try {
+			released.await();
+			return true;
+		} catch (InterruptedException e) {
+			LOGGER.debug("Interrupted while waiting for retry", e);
+			return false;
+		}
+	}
+
+	static Breaker getBreaker(String node) {
+		String key = String.valueOf(node);
+		Breaker breaker = BREAKERS.get(key);
+		if (breaker == null) {
+			BREAKERS.putIfAbsent(key, new Breaker(key));
+			breaker = BREAKERS.get(key);
+		}
+		return breaker;
+	}
+
+	private static long jitter(long delay) {
+		return (long) (delay * (1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1)));
+	}
+
+	private static void release(final CountDownLatch latch, long delay) {
+		TIMER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	static final class Breaker {
+		private final String node;
+		private int failures;
+		private int openings;
+		private long openUntil;
+		private boolean probing;
+		private final List<CountDownLatch> deferred = new ArrayList<>();
+
+		Breaker(String node) {
+			this.node = node;
+		}
+
+		synchronized boolean allowRequest(long now) {
+			if (openUntil == 0) {
+				return true;
+			}
+			if (now >= openUntil && !probing) {
+				probing = true;
+				// other tasks go elsewhere until the probe tells whether the node works
+				CuckooCluster.quarantine(node, now + openMillis);
+				LOGGER.info("Probing Cuckoo node {}", node);
+				return true;
+			}
+			return false;
+		}
+
+		synchronized void success() {
+			if (openUntil != 0) {
+				LOGGER.info("Cuckoo node {} works again, circuit closed, {} deferred tasks released", node,
+						deferred.size());
+				long spread = Math.min(MAX_RELEASE_SPREAD_MILLIS, deferred.size() * RELEASE_SPREAD_PER_TASK_MILLIS);
+				for (CountDownLatch latch : deferred) {
+					release(latch, spread == 0 ? 0 : ThreadLocalRandom.current().nextLong(spread));
+				}
+				deferred.clear();
+				CuckooCluster.release(node);
+			}
+			failures = 0;
+			openings = 0;
+			openUntil = 0;
+			probing = false;
+		}
+
+		synchronized void failure(long now) {
+			failures++;
+			if (probing || (openUntil == 0 && failures >= failureThreshold)) {
+				long open = openMillis << Math.min(openings, MAX_OPEN_DOUBLINGS);
+				openings++;
+				openUntil = now + open;
+				probing = false;
+				CuckooCluster.quarantine(node, openUntil);
+				LOGGER.warn("Circuit of Cuckoo node {} opened for {} ms after {} failures", new Object[] { node, open,
+						failures });
+			}
+		}
+
+		/**
+		 * While the circuit is open the task is kept until the node is probed, it is released earlier if the probe
+		 * succeeds. Otherwise it is released after its own delay.
+		 */
+		synchronized void defer(final CountDownLatch latch, long delay, long now) {
+			if (openUntil != 0) {
+				deferred.add(latch);
+				TIMER.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (Breaker.this) {
+							deferred.remove(latch);
+						}
+						latch.countDown();
+					}
+				}, Math.max(delay, openUntil - now + jitter(BASE_DELAY_MILLIS)), TimeUnit.MILLISECONDS);
+			} else {
+				release(latch, delay);
+			}
+		}
+	}
+}
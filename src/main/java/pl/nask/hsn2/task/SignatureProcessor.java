@@ -23,22 +23,45 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.Gson;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 public class SignatureProcessor {
 	private static final Logger LOGGER = LoggerFactory.getLogger(SignatureProcessor.class);
+	private static final int INITIAL_PIDS_SIZE = 64;
+	public static final int DEFAULT_TOP_PROCESSES = 5;
 	
-	private Map<Long, Process> dataWithPid = new HashMap<>();
+	private LongObjectMap<Process> dataWithPid = new LongObjectMap<>();
 	private Map<String, Double> data = new HashMap<>();
+	// one snapshot for the whole report, even if ratings are reloaded meanwhile
+	private final RatingTable ratings;
+	private long[] pids = new long[INITIAL_PIDS_SIZE];
+	private int pidsCount;
+	private int signatureCount;
+	private final TopProcesses topProcesses;
 	
 	public SignatureProcessor() {
+		this(DEFAULT_TOP_PROCESSES);
+	}
+
+	/**
+	 * @param topProcessesCount
+	 *            number of processes with the highest scores kept, at least one is always kept
+	 */
+	public SignatureProcessor(int topProcessesCount) {
+		this(Rating.getTable(), topProcessesCount);
+	}
+
+	SignatureProcessor(RatingTable ratings, int topProcessesCount) {
+		this.ratings = ratings;
+		topProcesses = new TopProcesses(Math.max(1, topProcessesCount));
 	}
 	
 	public final void process(InputStream stream) throws IOException {
@@ -49,8 +72,7 @@ public class SignatureProcessor {
 			if ("signatures".equals(name)){
 				reader.beginArray();
 				while (reader.hasNext()) {
-					Signature<Map<String,Object>> signature = new Gson().fromJson(reader, Signature.class);
-					extractData(signature);
+					processSignature(reader);
 				}
 				reader.endArray();
 			}
@@ -60,40 +82,154 @@ public class SignatureProcessor {
 		}
 		reader.endObject();
 	}
-	
-	private void extractData(Signature<Map<String,Object>> signature){
-		for (Map<String,Object> oneData : signature.getData()){
-			Double id = (Double)oneData.get("process_id");
-			if (id != null){
-				Long pid = id.longValue();
-				if (dataWithPid.containsKey(pid)){
-					dataWithPid.get(pid).addSignature(signature.getName());
+
+	/**
+	 * Reads only name of the signature and process ids of its data, everything else is skipped. Name may come after
+	 * the data, so process ids are collected in a buffer reused for all signatures.
+	 */
+	private void processSignature(JsonReader reader) throws IOException {
+		String signatureName = null;
+		pidsCount = 0;
+		boolean dataWithoutPid = false;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if ("name".equals(field) && reader.peek() == JsonToken.STRING) {
+				signatureName = reader.nextString();
+			} else if ("data".equals(field) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					if (!readProcessId(reader)) {
+						dataWithoutPid = true;
+					}
 				}
-				else{
-					dataWithPid.put(pid, new Process(pid, signature.getName()));
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (signatureName == null) {
+			return;
+		}
+		signatureCount++;
+		if (pidsCount > 0) {
+			int signatureId = ratings.getId(signatureName);
+			if (signatureId != -1) {
+				for (int i = 0; i < pidsCount; i++) {
+					addProcessSignature(pids[i], signatureId);
 				}
+			} else {
+				LOGGER.warn("No rate for: " + signatureName + " skipped.");
 			}
-			else{
-				String name = signature.getName();
-				if (!data.containsKey(name)){
-					try{
-						data.put(name, Rating.getValue(name));
-					}
-					catch (NoSuchElementException e){
-						LOGGER.warn(e.getMessage() +" Skipped.");
-					}
+		}
+		if (dataWithoutPid && !data.containsKey(signatureName)) {
+			try{
+				data.put(signatureName, ratings.getValue(signatureName));
+			}
+			catch (NoSuchElementException e){
+				LOGGER.warn(e.getMessage() +" Skipped.");
+			}
+		}
+	}
+
+	/**
+	 * Reads one data entry and buffers its process id.
+	 *
+	 * @return false if the entry has no process id
+	 */
+	private boolean readProcessId(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			return false;
+		}
+		boolean found = false;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			JsonToken token = reader.peek();
+			if ("process_id".equals(field) && (token == JsonToken.NUMBER || token == JsonToken.STRING)) {
+				if (pidsCount == pids.length) {
+					pids = Arrays.copyOf(pids, pidsCount * 2);
 				}
+				pids[pidsCount++] = (long) reader.nextDouble();
+				found = true;
+			} else {
+				reader.skipValue();
 			}
 		}
+		reader.endObject();
+		return found;
+	}
+
+	private void addProcessSignature(long pid, int signatureId) {
+		Process process = dataWithPid.get(pid);
+		if (process == null){
+			process = new Process(pid, ratings);
+			dataWithPid.put(pid, process);
+		}
+		if (process.addSignature(signatureId)) {
+			topProcesses.update(process);
+		}
 	}
 	
+	/**
+	 * Number of named signatures read from the report.
+	 */
+	public final int getSignatureCount() {
+		return signatureCount;
+	}
+
+	/**
+	 * Number of distinct processes with rated signatures.
+	 */
+	public final int getProcessCount() {
+		return dataWithPid.size();
+	}
+
 	public final Process getMaxRateProcess(){
-		Process[] processesList = dataWithPid.values().toArray(new Process[dataWithPid.size()]);
-		Arrays.sort(processesList);
-		return processesList.length == 0 ? null : processesList[0];
+		return topProcesses.first();
+	}
+
+	/**
+	 * @return processes with the highest scores, highest first (ties ordered by pid)
+	 */
+	public final List<Process> getTopProcesses() {
+		return topProcesses.get();
 	}
 	
 	public final Map<String, Double> getAdditionalScores(){
 		return data;
 	}
+
+	/**
+	 * @return score of the highest rated process plus scores of signatures not bound to any process
+	 */
+	public final double getTotalScore() {
+		Process process = getMaxRateProcess();
+		double score = process == null ? 0.0 : process.getScore();
+		for (Double additional : data.values()) {
+			score += additional;
+		}
+		return score;
+	}
+
+	/**
+	 * @return names of signatures that make up {@link #getTotalScore()}
+	 */
+	public final String getReason() {
+		StringBuilder reason = new StringBuilder();
+		Process process = getMaxRateProcess();
+		if (process != null) {
+			reason.append(process.getSignatureNamesAsString());
+		}
+		for (String name : data.keySet()) {
+			if (reason.length() > 0) {
+				reason.append(", ");
+			}
+			reason.append(name);
+		}
+		return reason.toString();
+	}
 }
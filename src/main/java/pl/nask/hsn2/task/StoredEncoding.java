@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pl.nask.hsn2.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.TaskContext;
+
+/**
+ * Compresses reports and artifacts on the fly while they are read by the data store. The encoding is recorded in
+ * NAME_encoding attribute next to the reference, named like HTTP content codings: "gzip" (RFC 1952) or "deflate" (zlib
+ * format, RFC 1950). Data stored without encoding has no such attribute.
+ */
+public final class StoredEncoding {
+	private static final Logger LOGGER = LoggerFactory.getLogger(StoredEncoding.class);
+
+	public static final String NONE = "none";
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+	public static final int DEFAULT_LEVEL = 6;
+	static final String KEY_SUFFIX = "_encoding";
+
+	// no flags, no modification time, no extra flags, unknown OS (255)
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private static volatile String encoding = null;
+	private static volatile int level = DEFAULT_LEVEL;
+
+	private StoredEncoding() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	/**
+	 * Reference to data saved in data store and the encoding it was saved with.
+	 */
+	static final class Stored {
+		private final long refId;
+		private final String encoding;
+
+		Stored(long refId, String encoding) {
+			this.refId = refId;
+			this.encoding = encoding;
+		}
+
+		long getRefId() {
+			return refId;
+		}
+
+		/**
+		 * @return encoding applied to stored data or null if it was stored as is
+		 */
+		String getEncoding() {
+			return encoding;
+		}
+	}
+
+	/**
+	 * @param codec
+	 *            {@link #GZIP}, {@link #DEFLATE} or {@link #NONE}
+	 * @param compressionLevel
+	 *            0 (no compression) to 9 (best compression)
+	 */
+	public static void configure(String codec, int compressionLevel) {
+		if (!NONE.equals(codec) && !GZIP.equals(codec) && !DEFLATE.equals(codec)) {
+			throw new IllegalArgumentException("Unknown encoding: " + codec);
+		}
+		if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level out of range: " + compressionLevel);
+		}
+		encoding = NONE.equals(codec) ? null : codec;
+		level = compressionLevel;
+		if (encoding != null) {
+			LOGGER.info("Reports and PCAP files are stored with {} encoding, level {}", encoding, level);
+		}
+	}
+
+	/**
+	 * Saves the stream in data store, encoded if encoding is configured. The source stream is not closed. Uploads of
+	 * one task are serialized on its job context, see {@link ArtifactFetcher}.
+	 *
+	 * @param artifact
+	 *            artifact name used in metrics, see {@link TaskMetrics}
+	 * @return reference id of stored data and the encoding applied, which stays the same even if encoding is
+	 *         reconfigured meanwhile
+	 */
+	static Stored save(TaskContext jobContext, InputStream source, String artifact, TaskResources resources)
+			throws StorageException {
+		String applied = encoding;
+		InputStream encoded = encode(source, applied, level);
+		CountingInputStream counted = new CountingInputStream(encoded);
+		try {
+			synchronized (jobContext) {
+				return new Stored(jobContext.saveInDataStore(counted), applied);
+			}
+		} finally {
+			if (encoded != source) {
+				// releases the native compressor even if data store did not read everything
+				IOUtils.closeQuietly(encoded);
+			}
+			resources.stored(counted.getByteCount());
+			TaskMetrics.storedBytes(artifact, counted.getByteCount());
+		}
+	}
+
+	/**
+	 * Like {@link #save}, but the stream is encoded into a spill file before the job context is locked, see
+	 * {@link ArtifactFetcher#store}. Used for artifacts, which are downloaded in parallel.
+	 */
+	static Stored spillAndSave(TaskContext jobContext, InputStream source, String artifact, TaskResources resources)
+			throws StorageException {
+		String applied = encoding;
+		InputStream encoded = encode(source, applied, level);
+		try {
+			return new Stored(ArtifactFetcher.store(jobContext, encoded, artifact, resources), applied);
+		} finally {
+			if (encoded != source) {
+				IOUtils.closeQuietly(encoded);
+			}
+		}
+	}
+
+	/**
+	 * @param codec
+	 *            {@link #GZIP}, {@link #DEFLATE} or null to return the source
+	 * @return stream of encoded data, closing it does not close the source
+	 */
+	static InputStream encode(InputStream source, String codec, int compressionLevel) {
+		if (codec == null) {
+			return source;
+		}
+		InputStream shielded = new CloseShieldInputStream(source);
+		if (GZIP.equals(codec)) {
+			return gzip(shielded, compressionLevel);
+		}
+		return new CompressingInputStream(shielded, new Deflater(compressionLevel));
+	}
+
+	/**
+	 * Gzip member is a fixed header, raw deflate data and a trailer with CRC32 and length of the input (modulo 2^32),
+	 * both known only after the input has been compressed.
+	 */
+	private static InputStream gzip(InputStream source, int compressionLevel) {
+		final CountingInputStream counted = new CountingInputStream(source);
+		final CheckedInputStream checked = new CheckedInputStream(counted, new CRC32());
+		final InputStream deflated = new CompressingInputStream(checked, new Deflater(compressionLevel, true));
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+			private int part = 0;
+
+			@Override
+			public boolean hasMoreElements() {
+				return part < 3;
+			}
+
+			@Override
+			public InputStream nextElement() {
+				switch (part++) {
+				case 0:
+					return new ByteArrayInputStream(GZIP_HEADER);
+				case 1:
+					return deflated;
+				case 2:
+					return new ByteArrayInputStream(gzipTrailer(checked.getChecksum().getValue(), counted.getByteCount()));
+				default:
+					throw new NoSuchElementException();
+				}
+			}
+		});
+	}
+
+	private static byte[] gzipTrailer(long crc, long length) {
+		byte[] trailer = new byte[8];
+		for (int i = 0; i < 4; i++) {
+			trailer[i] = (byte) (crc >>> (8 * i));
+			trailer[4 + i] = (byte) (length >>> (8 * i));
+		}
+		return trailer;
+	}
+
+	/**
+	 * Deflater input stream which ends its deflater when closed, so native memory is released right away.
+	 */
+	private static final class CompressingInputStream extends DeflaterInputStream {
+		CompressingInputStream(InputStream in, Deflater deflater) {
+			super(in, deflater);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				def.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.connector.CuckooException;
+import pl.nask.hsn2.connector.CuckooTaskStatus;
+import pl.nask.hsn2.metrics.Gauge;
+import pl.nask.hsn2.metrics.Metrics;
+
+/**
+ * Metrics of {@link CuckooTask}: duration of processing phases, tasks in flight, retries and errors by cause and bytes
+ * of retrieved artifacts.
+ */
+final class TaskMetrics {
+	// HTTP call that created the Cuckoo task
+	static final String SUBMIT = "submit";
+	static final String GATE = "gate";
+	// whole submission: waits in the gate, failed attempts with their retry delays and the successful submit
+	static final String SUBMISSION = "submission";
+	static final String QUEUE = "queue";
+	static final String ANALYSIS = "analysis";
+	static final String POLL = "poll";
+	static final String REPORT = "report";
+	static final String STORE_REPORT = "store_report";
+	static final String REPORT_HTML = "report_html";
+	static final String PCAP = "pcap";
+	static final String SCREENSHOTS = "screenshots";
+	static final String TOTAL = "total";
+
+	static final Gauge IN_FLIGHT = Metrics.gauge("cuckoo_tasks_in_flight");
+	static final Gauge ANALYSING = Metrics.gauge("cuckoo_tasks_analysing");
+
+	private static final String CUCKOO_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+	static final long NO_TIME = -1;
+
+	private TaskMetrics() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	/**
+	 * @return duration of the phase in milliseconds
+	 */
+	static long phaseDone(String phase, long startNanos) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		phaseDuration(phase, millis);
+		return millis;
+	}
+
+	static void phaseDuration(String phase, long millis) {
+		Metrics.histogram("cuckoo_task_phase_millis", "phase", phase).record(millis);
+	}
+
+	static void retry(String cause) {
+		Metrics.counter("cuckoo_task_retries_total", "cause", cause).inc();
+	}
+
+	static void error(String phase, Exception e) {
+		error(phase, causeOf(e));
+	}
+
+	static void error(String phase, String cause) {
+		Metrics.counter("cuckoo_task_errors_total", "phase", phase, "cause", cause).inc();
+	}
+
+	static void artifactBytes(String artifact, long bytes) {
+		Metrics.counter("cuckoo_artifact_bytes_total", "artifact", artifact).add(bytes);
+	}
+
+	/**
+	 * Bytes passed to data store, less than downloaded when stored data is compressed.
+	 */
+	static void storedBytes(String artifact, long bytes) {
+		Metrics.counter("cuckoo_stored_bytes_total", "artifact", artifact).add(bytes);
+	}
+
+	/**
+	 * Time the task waited in Cuckoo queue, as reported by Cuckoo.
+	 *
+	 * @return milliseconds or -1 if Cuckoo did not send the times
+	 */
+	static long queueMillis(CuckooTaskStatus status) {
+		return between(status.getAddedOn(), status.getStartedOn());
+	}
+
+	/**
+	 * Time of the analysis, as reported by Cuckoo.
+	 *
+	 * @return milliseconds or -1 if Cuckoo did not send the times
+	 */
+	static long analysisMillis(CuckooTaskStatus status) {
+		return between(status.getStartedOn(), status.getCompletedOn());
+	}
+
+	private static long between(String from, String to) {
+		long fromMillis = parseCuckooTime(from);
+		long toMillis = parseCuckooTime(to);
+		if (fromMillis == NO_TIME || toMillis == NO_TIME) {
+			return NO_TIME;
+		}
+		return Math.max(0, toMillis - fromMillis);
+	}
+
+	static String causeOf(Exception e) {
+		if (e instanceof CuckooException) {
+			return ((CuckooException) e).getReason();
+		} else if (e instanceof StorageException) {
+			return "storage";
+		} else if (e instanceof JSONException) {
+			return "bad_response";
+		} else if (e instanceof IOException) {
+			return "io";
+		}
+		return "other";
+	}
+
+	/**
+	 * Cuckoo dates have seconds precision, fraction of a second (if any) is ignored.
+	 */
+	static long parseCuckooTime(String date) {
+		if (date == null || date.length() < CUCKOO_DATE_FORMAT.length()) {
+			return NO_TIME;
+		}
+		try {
+			return new SimpleDateFormat(CUCKOO_DATE_FORMAT).parse(date.substring(0, CUCKOO_DATE_FORMAT.length()))
+					.getTime();
+		} catch (ParseException e) {
+			return NO_TIME;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resources used by one {@link CuckooTask}: CPU time and allocated bytes of all threads working for it, bytes sent to
+ * and received from Cuckoo, bytes written to data store and size of the report. Work of a task is spread over the HSN2
+ * worker thread and service pools, so every piece of it is measured on its own thread with {@link #startMeasurement()}
+ * and added up.
+ */
+final class TaskResources {
+	private static final Logger LOGGER = LoggerFactory.getLogger("pl.nask.hsn2.task.resources");
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final com.sun.management.ThreadMXBean ALLOCATIONS = THREADS instanceof com.sun.management.ThreadMXBean
+			? (com.sun.management.ThreadMXBean) THREADS : null;
+	private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+	private static final boolean ALLOCATIONS_SUPPORTED = ALLOCATIONS != null
+			&& ALLOCATIONS.isThreadAllocatedMemorySupported();
+
+	private final long startedAt = System.nanoTime();
+	private final AtomicLong cpuNanos = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLong sentBytes = new AtomicLong();
+	private final AtomicLong receivedBytes = new AtomicLong();
+	private final AtomicLong storedBytes = new AtomicLong();
+	private volatile long reportBytes;
+	private volatile int signatures;
+	private volatile int processes;
+
+	/**
+	 * Measurement of work done on the current thread, has to be stopped on the same thread.
+	 */
+	final class Measurement {
+		private final long cpuStart = currentThreadCpuTime();
+		private final long allocatedStart = currentThreadAllocatedBytes();
+
+		void stop() {
+			cpuNanos.addAndGet(currentThreadCpuTime() - cpuStart);
+			allocatedBytes.addAndGet(currentThreadAllocatedBytes() - allocatedStart);
+		}
+	}
+
+	Measurement startMeasurement() {
+		return new Measurement();
+	}
+
+	void sent(long bytes) {
+		sentBytes.addAndGet(bytes);
+	}
+
+	void received(long bytes) {
+		receivedBytes.addAndGet(bytes);
+	}
+
+	void stored(long bytes) {
+		storedBytes.addAndGet(bytes);
+	}
+
+	void report(long bytes, int signatureCount, int processCount) {
+		reportBytes = bytes;
+		signatures = signatureCount;
+		processes = processCount;
+	}
+
+	long getCpuNanos() {
+		return cpuNanos.get();
+	}
+
+	long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	long getReceivedBytes() {
+		return receivedBytes.get();
+	}
+
+	long getStoredBytes() {
+		return storedBytes.get();
+	}
+
+	/**
+	 * Logs resources of the finished task as key=value pairs (logger pl.nask.hsn2.task.resources) and adds them to
+	 * totals of its job.
+	 */
+	void finished(long jobId, int reqId, long cuckooTaskId) {
+		long wallMillis = (System.nanoTime() - startedAt) / 1000000;
+		if (LOGGER.isInfoEnabled()) {
+			LOGGER.info("job={} req={} cuckoo_task={} wall_ms={} cpu_ms={} alloc_bytes={} sent_bytes={} received_bytes={} "
+					+ "stored_bytes={} report_bytes={} signatures={} processes={}", new Object[] { jobId, reqId,
+					cuckooTaskId, wallMillis, cpuNanos.get() / 1000000, allocatedBytes.get(), sentBytes.get(),
+					receivedBytes.get(), storedBytes.get(), reportBytes, signatures, processes });
+		}
+		JobResources.add(jobId, this);
+	}
+
+	private static long currentThreadCpuTime() {
+		return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long currentThreadAllocatedBytes() {
+		return ALLOCATIONS_SUPPORTED ? ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+}
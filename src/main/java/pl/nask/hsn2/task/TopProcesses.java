@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps K processes with the highest scores, updated every time a score grows. Processes are ordered by score
+ * (descending) and then by pid (ascending), so ties are always resolved the same way. Scores never decrease, so a
+ * process that left the top can only come back by beating its lowest member.
+ */
+final class TopProcesses {
+	private final Process[] top;
+	private int size;
+
+	TopProcesses(int k) {
+		top = new Process[k];
+	}
+
+	/**
+	 * Called after score of the process has grown.
+	 */
+	void update(Process process) {
+		int position = indexOf(process);
+		if (position == -1) {
+			if (size < top.length) {
+				position = size++;
+			} else if (isBefore(process, top[size - 1])) {
+				position = size - 1;
+			} else {
+				return;
+			}
+			top[position] = process;
+		}
+		// move up to its place, only the updated process can be out of order
+		while (position > 0 && isBefore(top[position], top[position - 1])) {
+			Process previous = top[position - 1];
+			top[position - 1] = top[position];
+			top[position] = previous;
+			position--;
+		}
+	}
+
+	/**
+	 * @return process with the highest score or null if there are none
+	 */
+	Process first() {
+		return size == 0 ? null : top[0];
+	}
+
+	List<Process> get() {
+		List<Process> result = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			result.add(top[i]);
+		}
+		return result;
+	}
+
+	private int indexOf(Process process) {
+		for (int i = 0; i < size; i++) {
+			if (top[i] == process) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isBefore(Process a, Process b) {
+		if (a.getScore() != b.getScore()) {
+			return a.getScore() > b.getScore();
+		}
+		return a.getId() < b.getId();
+	}
+}
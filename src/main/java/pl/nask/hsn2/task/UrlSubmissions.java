@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces submissions of the same URL. The first task submitting a URL leads the flight, tasks submitting the same
+ * URL meanwhile wait for its verdict instead of creating their own Cuckoo tasks. Verdicts are also kept for a short
+ * window after the flight lands, so a burst of duplicates costs one analysis.
+ */
+public final class UrlSubmissions {
+	private static final Logger LOGGER = LoggerFactory.getLogger(UrlSubmissions.class);
+
+	public static final long DEFAULT_WINDOW_SECS = 300;
+
+	private static final Map<String, Flight> FLIGHTS = new HashMap<>();
+	private static long windowMillis = TimeUnit.SECONDS.toMillis(DEFAULT_WINDOW_SECS);
+	private static long sweptAt = System.currentTimeMillis();
+
+	/**
+	 * Analysis of one URL, shared by all tasks submitting it.
+	 */
+	static final class Flight {
+		private final String key;
+		private final CountDownLatch landed = new CountDownLatch(1);
+		private volatile VerdictCache.Verdict verdict;
+		private volatile long landedAt;
+
+		private Flight(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Waits until the leader lands the flight.
+		 *
+		 * @return verdict of the leader or null if it did not get one
+		 */
+		VerdictCache.Verdict await() throws InterruptedException {
+			landed.await();
+			return verdict;
+		}
+
+		/**
+		 * Publishes verdict to tasks waiting for it. Null verdict (analysis failed) is not kept in the window, so the
+		 * next submission of the URL, including a follower joining again, starts a new flight.
+		 */
+		void land(VerdictCache.Verdict leaderVerdict) {
+			synchronized (UrlSubmissions.class) {
+				verdict = leaderVerdict;
+				landedAt = System.currentTimeMillis();
+				if (leaderVerdict == null || windowMillis == 0) {
+					FLIGHTS.remove(key);
+				}
+			}
+			landed.countDown();
+		}
+
+		private boolean isExpired(long now) {
+			return landed.getCount() == 0 && now - landedAt > windowMillis;
+		}
+	}
+
+	/**
+	 * Place of one task in a flight.
+	 */
+	static final class Ticket {
+		private final Flight flight;
+		private final boolean leader;
+
+		private Ticket(Flight flight, boolean leader) {
+			this.flight = flight;
+			this.leader = leader;
+		}
+
+		Flight getFlight() {
+			return flight;
+		}
+
+		/**
+		 * @return true if the task has to submit the URL and land the flight
+		 */
+		boolean isLeader() {
+			return leader;
+		}
+	}
+
+	private UrlSubmissions() {
+		// this class cannot be instantiated, it's utility class
+	}
+
+	/**
+	 * @param windowSecs
+	 *            how long verdicts are kept after the flight lands, 0 means only concurrent submissions are coalesced
+	 */
+	public static synchronized void configure(long windowSecs) {
+		windowMillis = TimeUnit.SECONDS.toMillis(windowSecs);
+		LOGGER.info("Identical URL submissions coalesced, verdicts kept for {} s", windowSecs);
+	}
+
+	/**
+	 * Joins the flight for the given URL key or starts a new one, in which case the calling task becomes its leader.
+	 * A follower of a flight landed without verdict joins again, so one of the followers leads the next flight.
+	 */
+	static synchronized Ticket join(String key) {
+		long now = System.currentTimeMillis();
+		if (now - sweptAt > windowMillis) {
+			sweep(now);
+		}
+		Flight flight = FLIGHTS.get(key);
+		if (flight == null || flight.isExpired(now)) {
+			flight = new Flight(key);
+			FLIGHTS.put(key, flight);
+			return new Ticket(flight, true);
+		}
+		return new Ticket(flight, false);
+	}
+
+	static synchronized int size() {
+		return FLIGHTS.size();
+	}
+
+	private static void sweep(long now) {
+		sweptAt = now;
+		for (Iterator<Flight> it = FLIGHTS.values().iterator(); it.hasNext();) {
+			if (it.next().isExpired(now)) {
+				it.remove();
+			}
+		}
+	}
+}
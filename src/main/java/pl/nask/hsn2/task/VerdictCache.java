@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Remembers verdicts of analysed samples, so the same sample analysed with the same Cuckoo parameters does not take
+ * another sandbox run. Entries expire after a TTL and the least recently used ones are evicted when the cache is full.
+ * The cache is kept in a local file, saved periodically and on shutdown.
+ */
+public class VerdictCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(VerdictCache.class);
+	private static final long SAVE_INTERVAL_SECS = 60;
+
+	/**
+	 * Attributes and references set for an analysed object.
+	 */
+	public static final class Verdict {
+		private final long jobId;
+		private final long createdAt;
+		private final Map<String, String> attributes;
+		private final Map<String, Long> references;
+
+		public Verdict(long jobId, Map<String, String> attributes, Map<String, Long> references) {
+			this(jobId, System.currentTimeMillis(), attributes, references);
+		}
+
+		private Verdict(long jobId, long createdAt, Map<String, String> attributes, Map<String, Long> references) {
+			this.jobId = jobId;
+			this.createdAt = createdAt;
+			this.attributes = new LinkedHashMap<>(attributes);
+			this.references = new LinkedHashMap<>(references);
+		}
+
+		public long getJobId() {
+			return jobId;
+		}
+
+		public Map<String, String> getAttributes() {
+			return attributes;
+		}
+
+		/**
+		 * Data store references, valid only within the job that stored them.
+		 */
+		public Map<String, Long> getReferences() {
+			return references;
+		}
+	}
+
+	private static final class Entry {
+		private String key;
+		private Verdict verdict;
+	}
+
+	private final Path file;
+	private final long ttlMillis;
+	private final Map<String, Verdict> verdicts;
+	private boolean dirty = false;
+
+	public VerdictCache(File file, long ttl, TimeUnit unit, final int maxEntries) {
+		this.file = file.toPath();
+		this.ttlMillis = unit.toMillis(ttl);
+		verdicts = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		load();
+	}
+
+	/**
+	 * Saves the cache every minute (if changed) and when JVM stops.
+	 */
+	public final void startSaving() {
+		ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+				"cuckoo-verdict-cache"));
+		saver.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				save();
+			}
+		}, SAVE_INTERVAL_SECS, SAVE_INTERVAL_SECS, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				save();
+			}
+		}, "cuckoo-verdict-cache-shutdown"));
+	}
+
+	/**
+	 * @param sampleHash
+	 *            SHA-256 of the sample or the URL itself
+	 */
+	public static String key(String sampleHash, String cuckooPackage, String machine, String timeout) {
+		return sampleHash + "|" + nullToEmpty(cuckooPackage) + "|" + nullToEmpty(machine) + "|" + nullToEmpty(timeout);
+	}
+
+	public final synchronized Verdict get(String key) {
+		Verdict verdict = verdicts.get(key);
+		if (verdict != null && isExpired(verdict, System.currentTimeMillis())) {
+			verdicts.remove(key);
+			dirty = true;
+			return null;
+		}
+		return verdict;
+	}
+
+	public final synchronized void put(String key, Verdict verdict) {
+		verdicts.put(key, verdict);
+		dirty = true;
+	}
+
+	public final synchronized int size() {
+		return verdicts.size();
+	}
+
+	final void save() {
+		List<Entry> entries;
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+			entries = new ArrayList<>(verdicts.size());
+			long now = System.currentTimeMillis();
+			for (Iterator<Map.Entry<String, Verdict>> it = verdicts.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Verdict> mapEntry = it.next();
+				if (isExpired(mapEntry.getValue(), now)) {
+					it.remove();
+				} else {
+					Entry entry = new Entry();
+					entry.key = mapEntry.getKey();
+					entry.verdict = mapEntry.getValue();
+					entries.add(entry);
+				}
+			}
+			dirty = false;
+		}
+		try {
+			Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+			try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+				new Gson().toJson(entries, writer);
+			}
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LOGGER.debug("Verdict cache saved, {} entries", entries.size());
+		} catch (IOException e) {
+			LOGGER.warn("Cannot save verdict cache to " + file, e);
+			synchronized (this) {
+				dirty = true;
+			}
+		}
+	}
+
+	private synchronized void load() {
+		if (!Files.exists(file)) {
+			LOGGER.info("Verdict cache file {} not found, starting with empty cache", file);
+			return;
+		}
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			List<Entry> entries = new Gson().fromJson(reader, new TypeToken<List<Entry>>() {
+			}.getType());
+			long now = System.currentTimeMillis();
+			if (entries != null) {
+				for (Entry entry : entries) {
+					if (entry.key != null && entry.verdict != null && !isExpired(entry.verdict, now)) {
+						verdicts.put(entry.key, entry.verdict);
+					}
+				}
+			}
+			LOGGER.info("Verdict cache loaded from {}, {} entries", file, verdicts.size());
+		} catch (IOException | JsonParseException e) {
+			LOGGER.warn("Cannot load verdict cache from " + file + ", starting with empty cache", e);
+		}
+	}
+
+	private boolean isExpired(Verdict verdict, long now) {
+		return now - verdict.createdAt > ttlMillis;
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+}
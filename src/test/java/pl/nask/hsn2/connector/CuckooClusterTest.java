@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import mockit.Invocation;
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CuckooClusterTest {
+	private static final String NODE_A = "http://cuckoo-a:8090";
+	private static final String NODE_B = "http://cuckoo-b:8090";
+	private static final String NODE_C = "http://cuckoo-c:8090";
+	private static final long QUARANTINE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * Status responses of the nodes, a String is parsed like a response body, an exception is thrown.
+	 */
+	private final Map<String, Object> statuses = Collections.synchronizedMap(new HashMap<String, Object>());
+	private final List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+
+	@BeforeMethod
+	public void setUp() {
+		statuses.clear();
+		requested.clear();
+		new MockUp<CuckooRESTConnector>() {
+			@Mock
+			JSONObject getStatus(Invocation invocation) throws CuckooException {
+				String url = ((CuckooRESTConnector) invocation.getInvokedInstance()).getCuckooURL();
+				requested.add(url);
+				Object status = statuses.get(url);
+				if (status instanceof CuckooException) {
+					throw (CuckooException) status;
+				}
+				return new JSONObject((String) status);
+			}
+		};
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		CuckooCluster.setNodes(Collections.<String> emptyList(), QUARANTINE_MILLIS);
+	}
+
+	private static String status(int pending, int running, int available) {
+		return "{\"tasks\": {\"pending\": " + pending + ", \"running\": " + running + ", \"total\": 100}, "
+				+ "\"machines\": {\"available\": " + available + ", \"total\": 8}}";
+	}
+
+	@Test
+	public void testLeastLoadedNodeIsSelected() {
+		CuckooCluster.setNodes(Arrays.asList(NODE_A, NODE_B, NODE_C), QUARANTINE_MILLIS);
+		statuses.put(NODE_A, status(2, 2, 0));
+		statuses.put(NODE_B, status(0, 0, 0));
+		statuses.put(NODE_C, status(1, 1, 0));
+		CuckooCluster.refreshLoad();
+
+		Assert.assertEquals(CuckooCluster.selectNode(), NODE_B);
+		// tasks submitted since the refresh count to the load
+		Assert.assertEquals(CuckooCluster.selectNode(), NODE_B);
+		String third = CuckooCluster.selectNode();
+		Assert.assertTrue(NODE_B.equals(third) || NODE_C.equals(third), "selected " + third);
+		Assert.assertNotEquals(CuckooCluster.selectNode(), NODE_A);
+	}
+
+	@Test
+	public void testEquallyLoadedNodesTakeTurns() {
+		CuckooCluster.setNodes(Arrays.asList(NODE_A, NODE_B, NODE_C), QUARANTINE_MILLIS);
+		statuses.put(NODE_A, status(1, 1, 0));
+		statuses.put(NODE_B, status(1, 1, 0));
+		statuses.put(NODE_C, status(1, 1, 0));
+		Set<String> selected = new HashSet<>();
+		for (int i = 0; i < 3; i++) {
+			// refresh forgets submitted tasks, so only the rotation spreads them
+			CuckooCluster.refreshLoad();
+			selected.add(CuckooCluster.selectNode());
+		}
+
+		Assert.assertEquals(selected, new HashSet<>(Arrays.asList(NODE_A, NODE_B, NODE_C)));
+	}
+
+	@Test
+	public void testQuarantinedNodeGetsTasksAfterExpiry() throws InterruptedException {
+		CuckooCluster.setNodes(Arrays.asList(NODE_A, NODE_B), 300);
+		CuckooCluster.reportFailure(NODE_A);
+
+		for (int i = 0; i < 5; i++) {
+			Assert.assertEquals(CuckooCluster.selectNode(), NODE_B);
+		}
+		Assert.assertTrue(CuckooCluster.hasHealthyNode());
+		TimeUnit.MILLISECONDS.sleep(400);
+
+		// node B has the tasks submitted meanwhile
+		Assert.assertEquals(CuckooCluster.selectNode(), NODE_A);
+	}
+
+	@Test
+	public void testNodeReleasedFirstIsSelectedWhenAllAreQuarantined() throws InterruptedException {
+		CuckooCluster.setNodes(Arrays.asList(NODE_A, NODE_B), QUARANTINE_MILLIS);
+		CuckooCluster.reportFailure(NODE_B);
+		TimeUnit.MILLISECONDS.sleep(10);
+		CuckooCluster.reportFailure(NODE_A);
+
+		Assert.assertFalse(CuckooCluster.hasHealthyNode());
+		Assert.assertEquals(CuckooCluster.getFreeSlots(10), 0);
+		Assert.assertEquals(CuckooCluster.selectNode(), NODE_B);
+	}
+
+	@Test
+	public void testRefreshReadsQueueAndMachines() {
+		CuckooCluster.setNodes(Arrays.asList(NODE_A, NODE_B), QUARANTINE_MILLIS);
+		statuses.put(NODE_A, status(3, 1, 2));
+		// older Cuckoo versions report no machines
+		statuses.put(NODE_B, "{\"tasks\": {\"running\": 4}}");
+		CuckooCluster.refreshLoad();
+
+		// A: depth 5 + 2 available - 3 pending, B: depth 5 - 0 pending
+		Assert.assertEquals(CuckooCluster.getFreeSlots(5), 9);
+		Assert.assertEquals(CuckooCluster.getFreeSlots(1), 1);
+		Assert.assertEquals(CuckooCluster.selectNode(), NODE_A);
+		Assert.assertEquals(CuckooCluster.getFreeSlots(5), 8);
+	}
+
+	@Test
+	public void testMalformedStatusQuarantinesNode() {
+		CuckooCluster.setNodes(Arrays.asList(NODE_A, NODE_B, NODE_C), QUARANTINE_MILLIS);
+		statuses.put(NODE_A, "<html>Bad Gateway</html>");
+		statuses.put(NODE_B, "{\"tasks\": \"unknown\"}");
+		statuses.put(NODE_C, status(5, 5, 0));
+		CuckooCluster.refreshLoad();
+
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(CuckooCluster.selectNode(), NODE_C);
+		}
+		// only C counts: depth 10 - 5 pending - 3 submitted
+		Assert.assertEquals(CuckooCluster.getFreeSlots(10), 2);
+		Assert.assertTrue(CuckooCluster.hasHealthyNode());
+	}
+
+	@Test
+	public void testUnreachableNodeIsNotProbedDuringQuarantine() {
+		CuckooCluster.setNodes(Arrays.asList(NODE_A, NODE_B), QUARANTINE_MILLIS);
+		statuses.put(NODE_A, new CuckooException("Connection refused"));
+		statuses.put(NODE_B, status(0, 0, 1));
+		CuckooCluster.refreshLoad();
+		requested.clear();
+
+		CuckooCluster.refreshLoad();
+
+		Assert.assertEquals(requested, Arrays.asList(NODE_B));
+		Assert.assertEquals(CuckooCluster.selectNode(), NODE_B);
+	}
+}
@@ -1,11 +1,15 @@
 package pl.nask.hsn2.connector;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import mockit.Deencapsulation;
@@ -60,4 +64,27 @@ public class CuckooRESTConnectorTest {
 		PostMethod post = new PostMethod();
 		Deencapsulation.invoke(connector, "sendPost", post);
 	}
+
+	@Test
+	public void testGetTasksStatus() throws IOException, CuckooException {
+		final String tasksList = "{\"tasks\": ["
+				+ "{\"id\": 3, \"status\": \"running\", \"started_on\": \"2015-08-01 01:00:00\", \"completed_on\": null, \"sample\": {}},"
+				+ "{\"id\": 2, \"status\": \"reported\", \"errors\": [], \"guest\": {\"name\": \"cuckoo1\"}},"
+				+ "{\"id\": 1, \"status\": \"reported\", \"started_on\": \"2015-08-01 01:00:00\", \"completed_on\": \"2015-08-01 01:05:00\"}"
+				+ "]}";
+		new NonStrictExpectations() {
+			{
+				httpClient.executeMethod((HttpMethod) any); returns(200);
+				getMethod.getResponseBodyAsStream(); returns(IOUtils.toInputStream(tasksList));
+			}
+		};
+		CuckooRESTConnector connector = new CuckooRESTConnector();
+		Map<Long, CuckooTaskStatus> statuses = connector.getTasksStatus(Arrays.asList(1L, 3L));
+
+		Assert.assertEquals(statuses.size(), 2);
+		Assert.assertFalse(statuses.get(3L).isReported());
+		Assert.assertNull(statuses.get(3L).getCompletedOn());
+		Assert.assertTrue(statuses.get(1L).isReported());
+		Assert.assertEquals(statuses.get(1L).getCompletedOn(), "2015-08-01 01:05:00");
+	}
 }
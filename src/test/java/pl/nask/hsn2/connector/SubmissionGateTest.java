@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import mockit.Invocation;
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SubmissionGateTest {
+	private static final String NODE_A = "http://cuckoo-a:8090";
+	private static final String NODE_B = "http://cuckoo-b:8090";
+	private static final long QUARANTINE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * Pending tasks reported by the nodes.
+	 */
+	private final Map<String, Integer> pending = Collections.synchronizedMap(new HashMap<String, Integer>());
+	private final Map<String, Integer> running = Collections.synchronizedMap(new HashMap<String, Integer>());
+	private final List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+
+	@BeforeMethod
+	public void setUp() {
+		pending.clear();
+		running.clear();
+		admitted.clear();
+		new MockUp<CuckooRESTConnector>() {
+			@Mock
+			JSONObject getStatus(Invocation invocation) {
+				String url = ((CuckooRESTConnector) invocation.getInvokedInstance()).getCuckooURL();
+				return new JSONObject("{\"tasks\": {\"pending\": " + pending.get(url) + ", \"running\": "
+						+ running.get(url) + "}, \"machines\": {\"available\": 0}}");
+			}
+		};
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		SubmissionGate.configure(0);
+		CuckooCluster.setNodes(Collections.<String> emptyList(), QUARANTINE_MILLIS);
+	}
+
+	private void nodeLoad(String url, int pendingTasks, int runningTasks) {
+		pending.put(url, pendingTasks);
+		running.put(url, runningTasks);
+	}
+
+	/**
+	 * Starts a task waiting in the gate and waits until it is queued there.
+	 */
+	private Thread startTask(final String name) throws InterruptedException {
+		int waiting = SubmissionGate.getWaitingCount();
+		Thread task = new Thread(name) {
+			@Override
+			public void run() {
+				try {
+					SubmissionGate.admit();
+					admitted.add(getName());
+				} catch (InterruptedException e) {
+					admitted.add(getName() + " interrupted");
+				}
+			}
+		};
+		task.start();
+		while (SubmissionGate.getWaitingCount() == waiting && task.isAlive()) {
+			TimeUnit.MILLISECONDS.sleep(5);
+		}
+		return task;
+	}
+
+	private void awaitAdmitted(int count) throws InterruptedException {
+		while (admitted.size() < count) {
+			TimeUnit.MILLISECONDS.sleep(5);
+		}
+		// gives a wrongly admitted task the chance to show up
+		TimeUnit.MILLISECONDS.sleep(50);
+	}
+
+	@Test(timeOut = 30000)
+	public void testTasksAreAdmittedInArrivalOrder() throws InterruptedException {
+		CuckooCluster.setNodes(Arrays.asList(NODE_A), QUARANTINE_MILLIS);
+		nodeLoad(NODE_A, 2, 0);
+		CuckooCluster.refreshLoad();
+		SubmissionGate.configure(2);
+
+		List<Thread> tasks = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			tasks.add(startTask("task-" + i));
+		}
+		Assert.assertEquals(SubmissionGate.getWaitingCount(), 3);
+		Assert.assertTrue(admitted.isEmpty());
+
+		for (int i = 0; i < 3; i++) {
+			// one task leaves Cuckoo queue at a time, refresh lets one waiting task through
+			nodeLoad(NODE_A, 1, 1);
+			CuckooCluster.refreshLoad();
+			awaitAdmitted(i + 1);
+			Assert.assertEquals(admitted.size(), i + 1);
+		}
+		Assert.assertEquals(admitted, Arrays.asList("task-0", "task-1", "task-2"));
+		for (Thread task : tasks) {
+			task.join();
+		}
+	}
+
+	@Test(timeOut = 30000)
+	public void testInterruptedTaskReleasesItsTurn() throws InterruptedException {
+		CuckooCluster.setNodes(Arrays.asList(NODE_A), QUARANTINE_MILLIS);
+		nodeLoad(NODE_A, 1, 0);
+		CuckooCluster.refreshLoad();
+		SubmissionGate.configure(1);
+		Thread first = startTask("first");
+		Thread second = startTask("second");
+
+		first.interrupt();
+		first.join();
+		nodeLoad(NODE_A, 0, 1);
+		CuckooCluster.refreshLoad();
+		second.join();
+
+		Assert.assertEquals(admitted, Arrays.asList("first interrupted", "second"));
+		Assert.assertEquals(SubmissionGate.getWaitingCount(), 0);
+	}
+
+	@Test(timeOut = 30000)
+	public void testDisablingGateReleasesWaitingTasks() throws InterruptedException {
+		CuckooCluster.setNodes(Arrays.asList(NODE_A), QUARANTINE_MILLIS);
+		nodeLoad(NODE_A, 5, 0);
+		CuckooCluster.refreshLoad();
+		SubmissionGate.configure(1);
+		Thread first = startTask("first");
+		Thread second = startTask("second");
+
+		SubmissionGate.configure(0);
+		first.join();
+		second.join();
+
+		Assert.assertEquals(admitted.size(), 2);
+	}
+
+	@Test
+	public void testTaskGoesToNodeWithRoom() throws InterruptedException {
+		// A is less loaded but its queue is full, B runs more tasks but has room in its queue
+		CuckooCluster.setNodes(Arrays.asList(NODE_A, NODE_B), QUARANTINE_MILLIS);
+		nodeLoad(NODE_A, 2, 0);
+		nodeLoad(NODE_B, 0, 5);
+		CuckooCluster.refreshLoad();
+		SubmissionGate.configure(2);
+
+		Assert.assertEquals(SubmissionGate.admit(), NODE_B);
+		Assert.assertEquals(SubmissionGate.admit(), NODE_B);
+		// without the gate the least loaded node is chosen
+		SubmissionGate.configure(0);
+		Assert.assertEquals(SubmissionGate.admit(), NODE_A);
+	}
+}
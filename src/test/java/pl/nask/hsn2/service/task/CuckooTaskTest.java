@@ -34,6 +34,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONObject;
 import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import mockit.Deencapsulation;
@@ -72,6 +73,12 @@ public class CuckooTaskTest {
 	@Mocked
 	GetMethod getMethod;
 
+	@BeforeMethod
+	public void setUpConnector() {
+		// artifacts are fetched per Cuckoo node, so the node URL must be set even if no test of the connector ran
+		CuckooRESTConnector.setCuckooURL("http://localhost/");
+	}
+
 	private void setup(final boolean pcap, final boolean json, final boolean html, final boolean screenshots,
 			final boolean error) throws ParameterException, IOException {
 		final String cuckooTaskView = FileUtils.readFileToString(new File("src/test/resources/cuckoo_task_view.json"), "UTF-8");
@@ -109,7 +116,7 @@ public class CuckooTaskTest {
 	public void urlTaskTest() throws ParameterException, ResourceException, StorageException, InputDataException, IOException {
 		setup(false, false, false, false, false);
 
-		Task task = new CuckooTask(jobContext, parameters, data, "/tmp", false);
+		Task task = new CuckooTask(jobContext, parameters, data, false);
 		task.process();
 
 		Assert.assertTrue(task.takesMuchTime());
@@ -119,7 +126,7 @@ public class CuckooTaskTest {
 	public void urlTaskTestWithSave() throws ParameterException, ResourceException, StorageException, InputDataException, IOException {
 		setup(true, true, true, true, false);
 
-		Task task = new CuckooTask(jobContext, parameters, data, "/tmp", false);
+		Task task = new CuckooTask(jobContext, parameters, data, false);
 		task.process();
 
 		Assert.assertTrue(task.takesMuchTime());
@@ -142,7 +149,7 @@ public class CuckooTaskTest {
 			}
 		};
 
-		Task task = new CuckooTask(jobContext, parameters, data, System.getProperty("java.io.tmpdir"), true);
+		Task task = new CuckooTask(jobContext, parameters, data, true);
 		task.process();
 	}
 
@@ -153,13 +160,13 @@ public class CuckooTaskTest {
 				data.getUrlForProcessing(); result = "http://www.google.com/abcdef?J%V$#%*¨&$%JH4u5hfek95n89756rtr4´t467545t4@#$%¨&*&H¨GFA#$%Y*J%V$#%*¨&$%JH";
 			}
 		};
-		CuckooTask task = new CuckooTask(jobContext, parameters, data, "/tmp", false);
+		CuckooTask task = new CuckooTask(jobContext, parameters, data, false);
 		String preparedUrl = Deencapsulation.invoke(task, "prepareUrlForProcessing");
 		Assert.assertEquals(preparedUrl, "http://www.google.com/abcdef?J%25V%24%23%25*%C2%A8%26%24%25JH4u5hfek95n89756rtr4%C2%B4t467545t4%40%23%24%25%C2%A8%26*%26H%C2%A8GFA%23%24%25Y*J%25V%24%23%25*%C2%A8%26%24%25JH");
 	}
 
 	@Test
-	public void testSaveJsonReport() throws ParameterException, IOException {
+	public void testProcessAndSaveJsonReport() throws ParameterException, IOException {
 		new NonStrictExpectations() {
 			{
 				data.getUrlForProcessing(); result = "http://www.google.com/";
@@ -170,8 +177,8 @@ public class CuckooTaskTest {
 				jobContext.addAttribute("cuckoo_error", anyString); times = 1;
 			}
 		};
-		CuckooTask task = new CuckooTask(jobContext, parameters, data, "/tmp", false);
-		Deencapsulation.invoke(task, "saveJsonReport");
+		CuckooTask task = new CuckooTask(jobContext, parameters, data, false);
+		Deencapsulation.invoke(task, "processDataAndCalculateRating");
 	}
 
 	@Test(expectedExceptions = { ResourceException.class })
@@ -186,24 +193,18 @@ public class CuckooTaskTest {
 				jobContext.addAttribute("cuckoo_error", anyString); times = 0;
 			}
 		};
-		CuckooTask task = new CuckooTask(jobContext, parameters, data, "/tmp", false);
+		CuckooTask task = new CuckooTask(jobContext, parameters, data, false);
 		Deencapsulation.invoke(task, "saveHtmlReport");
 	}
 
 	@Test
-	public void testCalculate() throws ParameterException {
-		new NonStrictExpectations() {
-			{
-				data.getUrlForProcessing(); result = "http://www.google.com/";
-			}
-		};
-		CuckooTask task = new CuckooTask(jobContext, parameters, data, "/tmp", false);
-		Assert.assertEquals(Deencapsulation.invoke(task, "calculate", 0.0), "benign");
-		Assert.assertEquals(Deencapsulation.invoke(task, "calculate", 0.99), "benign");
-		Assert.assertEquals(Deencapsulation.invoke(task, "calculate", 1.5), "malicious");
-		Assert.assertEquals(Deencapsulation.invoke(task, "calculate", 2.0), "malicious");
-		Assert.assertEquals(Deencapsulation.invoke(task, "calculate", 1.0), "suspicious");
-		Assert.assertEquals(Deencapsulation.invoke(task, "calculate", 1.25), "suspicious");
+	public void testCalculate() {
+		Assert.assertEquals(Deencapsulation.invoke(CuckooTask.class, "classify", 0.0), "benign");
+		Assert.assertEquals(Deencapsulation.invoke(CuckooTask.class, "classify", 0.99), "benign");
+		Assert.assertEquals(Deencapsulation.invoke(CuckooTask.class, "classify", 1.5), "malicious");
+		Assert.assertEquals(Deencapsulation.invoke(CuckooTask.class, "classify", 2.0), "malicious");
+		Assert.assertEquals(Deencapsulation.invoke(CuckooTask.class, "classify", 1.0), "suspicious");
+		Assert.assertEquals(Deencapsulation.invoke(CuckooTask.class, "classify", 1.25), "suspicious");
 	}
 
 	@Test(expectedExceptions = { ResourceException.class })
@@ -220,7 +221,7 @@ public class CuckooTaskTest {
 				parameters.getBoolean("fail_on_error", false); result = true;
 			}
 		};
-		CuckooTask task = new CuckooTask(jobContext, parameters, data, "/tmp", false);
+		CuckooTask task = new CuckooTask(jobContext, parameters, data, false);
 		Deencapsulation.invoke(task, "isTaskDone");
 	}
 
@@ -243,8 +244,55 @@ public class CuckooTaskTest {
 				data.getUrlForProcessing(); result = "http://www.google.com/";
 			}
 		};
-		CuckooTask task = new CuckooTask(jobContext, parameters, data, "/tmp", false);
+		CuckooTask task = new CuckooTask(jobContext, parameters, data, false);
 		boolean result = Deencapsulation.invoke(task, "isTaskDone");
 		Assert.assertFalse(result);
 	}
+
+	private void setupSubmission(final int retry) throws ParameterException {
+		new NonStrictExpectations() {
+			{
+				data.getReferenceId("content"); result = null;
+				data.getUrlForProcessing(); result = "http://www.google.com/";
+				parameters.getInt("retry", 3); result = retry;
+				parameters.getInt("retry_wait", 5); result = 0;
+
+				jobContext.addAttribute("cuckoo_error", anyString); times = 1;
+			}
+		};
+	}
+
+	@Test
+	public void testRejectedTaskKeepsNodeInRotation() throws Exception {
+		new MockUp<CuckooRESTConnector>() {
+			@Mock(invocations = 1)
+			public long sendURL(String urlForProc, Set<NameValuePair> cuckooParams) throws CuckooException {
+				throw new CuckooException("Bad request", 400);
+			}
+
+			@Mock(invocations = 0)
+			public void reportNodeFailure() {
+			}
+		};
+		setupSubmission(3);
+
+		new CuckooTask(jobContext, parameters, data, false).process();
+	}
+
+	@Test
+	public void testServerErrorQuarantinesNode() throws Exception {
+		new MockUp<CuckooRESTConnector>() {
+			@Mock(invocations = 1)
+			public long sendURL(String urlForProc, Set<NameValuePair> cuckooParams) throws CuckooException {
+				throw new CuckooException("Internal server error", 500);
+			}
+
+			@Mock(invocations = 1)
+			public void reportNodeFailure() {
+			}
+		};
+		setupSubmission(0);
+
+		new CuckooTask(jobContext, parameters, data, false).process();
+	}
 }
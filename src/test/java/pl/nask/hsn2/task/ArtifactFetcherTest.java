@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mockit.Delegate;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.ResourceException;
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.TaskContext;
+
+public class ArtifactFetcherTest {
+	private static final String NODE = "http://cuckoo-1:8090/";
+
+	@Mocked
+	TaskContext jobContext;
+
+	private List<byte[]> saved;
+
+	@BeforeMethod
+	public void setUp() throws StorageException {
+		saved = Collections.synchronizedList(new ArrayList<byte[]>());
+		new NonStrictExpectations() {
+			{
+				jobContext.saveInDataStore((InputStream) any);
+				result = new Delegate<Long>() {
+					@SuppressWarnings("unused")
+					long saveInDataStore(InputStream stream) throws IOException {
+						saved.add(IOUtils.toByteArray(stream));
+						return saved.size();
+					}
+				};
+			}
+		};
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		ArtifactFetcher.configure(ArtifactFetcher.DEFAULT_THREADS, ArtifactFetcher.DEFAULT_PER_NODE);
+		// clears the interrupt flag left by an interrupted test
+		Thread.interrupted();
+	}
+
+	/**
+	 * Artifact which records how many artifacts of its node are saved at the same time.
+	 */
+	private static ArtifactFetcher.Artifact counted(final AtomicInteger running, final AtomicInteger maxRunning) {
+		return new ArtifactFetcher.Artifact() {
+			@Override
+			public void save() {
+				int now = running.incrementAndGet();
+				synchronized (maxRunning) {
+					maxRunning.set(Math.max(maxRunning.get(), now));
+				}
+				try {
+					TimeUnit.MILLISECONDS.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					running.decrementAndGet();
+				}
+			}
+		};
+	}
+
+	private static ArtifactFetcher.Artifact failing(final Exception failure, final long delayMillis) {
+		return new ArtifactFetcher.Artifact() {
+			@Override
+			public void save() throws ResourceException, StorageException {
+				try {
+					TimeUnit.MILLISECONDS.sleep(delayMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (failure instanceof ResourceException) {
+					throw (ResourceException) failure;
+				} else if (failure instanceof StorageException) {
+					throw (StorageException) failure;
+				}
+				throw (RuntimeException) failure;
+			}
+		};
+	}
+
+	@Test
+	public void testDownloadsFromOneNodeAreCapped() throws Exception {
+		ArtifactFetcher.configure(8, 2);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		List<ArtifactFetcher.Artifact> artifacts = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			artifacts.add(counted(running, maxRunning));
+		}
+
+		ArtifactFetcher.fetchAll(NODE, artifacts);
+
+		Assert.assertEquals(maxRunning.get(), 2);
+	}
+
+	@Test
+	public void testCapIsSharedByTasksOfOneNode() throws Exception {
+		ArtifactFetcher.configure(8, 3);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final AtomicInteger otherRunning = new AtomicInteger();
+		final AtomicInteger otherMaxRunning = new AtomicInteger();
+		Thread otherTask = new Thread() {
+			@Override
+			public void run() {
+				try {
+					ArtifactFetcher.fetchAll(NODE, Arrays.asList(counted(running, maxRunning),
+							counted(running, maxRunning), counted(running, maxRunning)));
+				} catch (ResourceException | StorageException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		otherTask.start();
+		ArtifactFetcher.fetchAll(NODE, Arrays.asList(counted(running, maxRunning), counted(running, maxRunning),
+				counted(running, maxRunning)));
+		// another node has its own permits
+		ArtifactFetcher.fetchAll("http://cuckoo-2:8090/", Arrays.asList(counted(otherRunning, otherMaxRunning),
+				counted(otherRunning, otherMaxRunning), counted(otherRunning, otherMaxRunning)));
+		otherTask.join();
+
+		Assert.assertTrue(maxRunning.get() <= 3, "downloads from one node: " + maxRunning.get());
+		Assert.assertEquals(otherMaxRunning.get(), 3);
+	}
+
+	@Test
+	public void testFirstFailureInListOrderIsRethrown() throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		final AtomicInteger finished = new AtomicInteger();
+		ArtifactFetcher.Artifact last = new ArtifactFetcher.Artifact() {
+			@Override
+			public void save() {
+				finished.incrementAndGet();
+			}
+		};
+		ResourceException first = new ResourceException("html report failed");
+		StorageException second = new StorageException("pcap failed");
+		try {
+			// the later failure comes first, the earlier one is still reported
+			ArtifactFetcher.fetchAll(NODE, Arrays.asList(counted(running, maxRunning), failing(first, 200),
+					failing(second, 0), last));
+			Assert.fail("failure not reported");
+		} catch (ResourceException e) {
+			Assert.assertSame(e, first);
+		}
+		Assert.assertEquals(finished.get(), 1, "artifacts after a failure are saved too");
+	}
+
+	@Test
+	public void testFailuresAreRethrownAsTheyAre() throws Exception {
+		StorageException storageFailure = new StorageException("data store failed");
+		try {
+			ArtifactFetcher.fetchAll(NODE, Arrays.asList(failing(storageFailure, 0)));
+			Assert.fail("failure not reported");
+		} catch (StorageException e) {
+			Assert.assertSame(e, storageFailure);
+		}
+		IllegalStateException runtimeFailure = new IllegalStateException("bug");
+		try {
+			ArtifactFetcher.fetchAll(NODE, Arrays.asList(failing(runtimeFailure, 0)));
+			Assert.fail("failure not reported");
+		} catch (IllegalStateException e) {
+			Assert.assertSame(e, runtimeFailure);
+		}
+	}
+
+	@Test
+	public void testInterruptIsPropagated() throws Exception {
+		ArtifactFetcher.configure(8, 1);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		Thread.currentThread().interrupt();
+		try {
+			ArtifactFetcher.fetchAll(NODE, Arrays.asList(counted(running, maxRunning), counted(running, maxRunning)));
+			Assert.fail("interrupt swallowed");
+		} catch (ResourceException e) {
+			Assert.assertTrue(Thread.currentThread().isInterrupted());
+		}
+	}
+
+	@Test
+	public void testStoreSpillsAndUploads() throws Exception {
+		byte[] data = "PCAP".getBytes(StandardCharsets.UTF_8);
+
+		long refId = ArtifactFetcher.store(jobContext, new ByteArrayInputStream(data), TaskMetrics.PCAP,
+				new TaskResources());
+
+		Assert.assertEquals(refId, 1);
+		Assert.assertEquals(saved.get(0), data);
+	}
+
+	@Test(expectedExceptions = StorageException.class)
+	public void testDownloadFailureIsStorageFailure() throws Exception {
+		InputStream broken = new FilterInputStream(new ByteArrayInputStream(new byte[10])) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				throw new IOException("Connection reset");
+			}
+		};
+		try {
+			ArtifactFetcher.store(jobContext, broken, TaskMetrics.PCAP, new TaskResources());
+		} finally {
+			Assert.assertTrue(saved.isEmpty(), "broken download uploaded");
+		}
+	}
+
+	@Test(timeOut = 60000)
+	public void testArtifactsOfOneTaskAreDownloadedInParallel() throws Exception {
+		// every download waits until the other one has started, it would wait forever under the job context lock
+		final CountDownLatch downloading = new CountDownLatch(2);
+		List<ArtifactFetcher.Artifact> artifacts = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			final byte[] data = ("artifact " + i).getBytes(StandardCharsets.UTF_8);
+			artifacts.add(new ArtifactFetcher.Artifact() {
+				@Override
+				public void save() throws StorageException {
+					InputStream download = new FilterInputStream(new ByteArrayInputStream(data)) {
+						@Override
+						public int read(byte[] b, int off, int len) throws IOException {
+							downloading.countDown();
+							try {
+								downloading.await();
+							} catch (InterruptedException e) {
+								throw new IOException(e);
+							}
+							return super.read(b, off, len);
+						}
+					};
+					StoredEncoding.spillAndSave(jobContext, download, TaskMetrics.REPORT_HTML, new TaskResources());
+				}
+			});
+		}
+
+		ArtifactFetcher.fetchAll(NODE, artifacts);
+
+		Assert.assertEquals(saved.size(), 2);
+	}
+}
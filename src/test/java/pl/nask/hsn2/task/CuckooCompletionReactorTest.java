@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pl.nask.hsn2.task;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import mockit.Mock;
+import mockit.MockUp;
+import pl.nask.hsn2.connector.CuckooException;
+import pl.nask.hsn2.connector.CuckooRESTConnector;
+import pl.nask.hsn2.connector.CuckooTaskStatus;
+
+public class CuckooCompletionReactorTest {
+	private static final String ESTIMATE_KEY = "test|test";
+
+	private CuckooCompletionReactor reactor;
+	private CountDownLatch polled;
+
+	private static final class FakeParkedTask implements CuckooCompletionReactor.ParkedTask {
+		private final int pollRetries;
+		private final AtomicBoolean failed = new AtomicBoolean();
+		private final AtomicBoolean finished = new AtomicBoolean();
+		private final CountDownLatch finishing = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+		private volatile boolean blockFinish = false;
+
+		FakeParkedTask(int pollRetries) {
+			this.pollRetries = pollRetries;
+		}
+
+		@Override
+		public long getCuckooTaskId() {
+			return 1;
+		}
+
+		@Override
+		public String getCuckooNode() {
+			return "http://localhost:1337";
+		}
+
+		@Override
+		public boolean isTaskDone(CuckooTaskStatus status) {
+			return status.isReported();
+		}
+
+		@Override
+		public boolean isTaskDone() {
+			return false;
+		}
+
+		@Override
+		public boolean isTaskDone(CuckooException pollError) {
+			failed.set(true);
+			return true;
+		}
+
+		@Override
+		public int getPollRetries() {
+			return pollRetries;
+		}
+
+		@Override
+		public void finishTask() {
+			finishing.countDown();
+			if (blockFinish) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			finished.set(true);
+		}
+	}
+
+	@BeforeMethod
+	public void setUp() {
+		polled = new CountDownLatch(1);
+		new MockUp<CuckooRESTConnector>() {
+			@Mock
+			public Map<Long, CuckooTaskStatus> getTasksStatus(Collection<Long> cuckooTaskIds) throws CuckooException {
+				polled.countDown();
+				throw new CuckooException("Cannot get tasks list", 503);
+			}
+		};
+		reactor = new CuckooCompletionReactor(1);
+		// first observation replaces the default overhead, so the task is polled right after parking
+		reactor.getEstimator().record(ESTIMATE_KEY, 0);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		reactor.shutdown();
+	}
+
+	@Test
+	public void testFailedBatchIsMissedPoll() throws Exception {
+		FakeParkedTask task = new FakeParkedTask(3);
+		Future<Void> finished = reactor.park(task, 0, ESTIMATE_KEY);
+
+		Assert.assertTrue(polled.await(10, TimeUnit.SECONDS));
+		TimeUnit.MILLISECONDS.sleep(200);
+		Assert.assertFalse(task.failed.get());
+		Assert.assertFalse(task.finished.get());
+		Assert.assertFalse(finished.isDone());
+		Assert.assertEquals(reactor.getParkedCount(), 1);
+	}
+
+	@Test
+	public void testTaskFailsWhenPollRetriesUsedUp() throws Exception {
+		FakeParkedTask task = new FakeParkedTask(0);
+		Future<Void> finished = reactor.park(task, 0, ESTIMATE_KEY);
+
+		finished.get(10, TimeUnit.SECONDS);
+		Assert.assertTrue(task.failed.get());
+		Assert.assertTrue(task.finished.get());
+		Assert.assertEquals(reactor.getParkedCount(), 0);
+	}
+
+	@Test
+	public void testShutdownCancelsParkedTasks() throws Exception {
+		FakeParkedTask task = new FakeParkedTask(3);
+		// no estimate for the key, the task is not due before the default overhead passes
+		Future<Void> finished = reactor.park(task, 600, "other|other");
+
+		reactor.shutdown();
+
+		Assert.assertTrue(finished.isCancelled());
+		Assert.assertEquals(reactor.getParkedCount(), 0);
+		Assert.assertFalse(task.finished.get());
+		try {
+			finished.get(1, TimeUnit.SECONDS);
+			Assert.fail("Future of cancelled task completed");
+		} catch (CancellationException e) {
+			// expected, the worker waiting for it is released
+		}
+	}
+
+	@Test
+	public void testShutdownCancelsQueuedCompletions() throws Exception {
+		FakeParkedTask running = new FakeParkedTask(0);
+		running.blockFinish = true;
+		reactor.park(running, 0, ESTIMATE_KEY);
+		Assert.assertTrue(running.finishing.await(10, TimeUnit.SECONDS));
+
+		// the only completion thread is busy, so the second task waits in the pool queue
+		FakeParkedTask queued = new FakeParkedTask(0);
+		Future<Void> queuedFinished = reactor.park(queued, 0, ESTIMATE_KEY);
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (!queued.failed.get() && System.currentTimeMillis() < deadline) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		Assert.assertTrue(queued.failed.get());
+		TimeUnit.MILLISECONDS.sleep(100);
+
+		reactor.shutdown();
+
+		Assert.assertTrue(queuedFinished.isCancelled());
+		Assert.assertFalse(queued.finished.get());
+		Assert.assertFalse(running.finished.get());
+	}
+
+	@Test
+	public void testParkAfterShutdownIsCancelled() {
+		reactor.shutdown();
+
+		Future<Void> finished = reactor.park(new FakeParkedTask(3), 600, ESTIMATE_KEY);
+
+		Assert.assertTrue(finished.isCancelled());
+		Assert.assertEquals(reactor.getParkedCount(), 0);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import mockit.Delegate;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+
+import org.apache.commons.httpclient.methods.multipart.FilePart;
+import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.TaskContext;
+
+public class DataStorePartSourceTest {
+	private static final long CONTENT_ID = 7;
+	private static final byte[] SAMPLE = "MZ sample body".getBytes(StandardCharsets.UTF_8);
+
+	@Mocked
+	TaskContext jobContext;
+
+	private void sampleInDataStore() throws StorageException {
+		new NonStrictExpectations() {
+			{
+				jobContext.getFileAsInputStream(CONTENT_ID);
+				result = new Delegate<InputStream>() {
+					@SuppressWarnings("unused")
+					InputStream getFileAsInputStream(long id) {
+						// data store gives a new stream on every call
+						return new ByteArrayInputStream(SAMPLE);
+					}
+				};
+			}
+		};
+	}
+
+	@Test
+	public void testLengthIsUnknown() {
+		DataStorePartSource source = new DataStorePartSource(jobContext, CONTENT_ID, "sample.exe", new TaskResources());
+
+		Assert.assertEquals(source.getLength(), -1);
+		Assert.assertEquals(source.getFileName(), "sample.exe");
+	}
+
+	@Test
+	public void testRetriedRequestReopensSample() throws Exception {
+		sampleInDataStore();
+		TaskResources resources = new TaskResources();
+		DataStorePartSource source = new DataStorePartSource(jobContext, CONTENT_ID, "sample.exe", resources);
+		Part[] parts = {new FilePart("file", source)};
+
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		Part.sendParts(first, parts);
+		// a retried request sends the part again, the sample is read from data store from the beginning
+		ByteArrayOutputStream retried = new ByteArrayOutputStream();
+		Part.sendParts(retried, parts);
+
+		Assert.assertEquals(retried.toByteArray(), first.toByteArray());
+		Assert.assertTrue(new String(retried.toByteArray(), StandardCharsets.UTF_8).contains("MZ sample body"));
+		Assert.assertEquals(resources.getSentBytes(), 2L * SAMPLE.length);
+		new Verifications() {
+			{
+				jobContext.getFileAsInputStream(CONTENT_ID);
+				times = 2;
+			}
+		};
+	}
+
+	@Test
+	public void testStreamsAreIndependent() throws Exception {
+		sampleInDataStore();
+		DataStorePartSource source = new DataStorePartSource(jobContext, CONTENT_ID, "sample.exe", new TaskResources());
+
+		try (InputStream abandoned = source.createInputStream(); InputStream reopened = source.createInputStream()) {
+			Assert.assertEquals(abandoned.read(new byte[4]), 4);
+			Assert.assertEquals(IOUtils.toByteArray(reopened), SAMPLE);
+		}
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void testDataStoreFailureIsIOException() throws Exception {
+		new NonStrictExpectations() {
+			{
+				jobContext.getFileAsInputStream(CONTENT_ID);
+				result = new StorageException("No such file");
+			}
+		};
+		new DataStorePartSource(jobContext, CONTENT_ID, "sample.exe", new TaskResources()).createInputStream();
+	}
+}
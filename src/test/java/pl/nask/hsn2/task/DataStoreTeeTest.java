@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mockit.Delegate;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.TaskContext;
+
+public class DataStoreTeeTest {
+	private static final String PADDING = "{\"info\": {\"id\": 1}, \"padding\": \"";
+
+	@Mocked
+	TaskContext jobContext;
+
+	private ByteArrayOutputStream saved;
+	private AtomicReference<IOException> storeFailure;
+	private CountDownLatch storeDone;
+	private SignatureProcessor processor;
+
+	@BeforeMethod
+	public void setUp() throws IOException, StorageException {
+		saved = new ByteArrayOutputStream();
+		storeFailure = new AtomicReference<>();
+		storeDone = new CountDownLatch(1);
+		processor = new SignatureProcessor(RatingTable.read(new StringReader("antivm_vbox=1.5\n")), 3);
+		new NonStrictExpectations() {
+			{
+				jobContext.saveInDataStore((InputStream) any);
+				result = new Delegate<Long>() {
+					@SuppressWarnings("unused")
+					long saveInDataStore(InputStream stream) throws StorageException {
+						try {
+							IOUtils.copy(stream, saved);
+							return 42;
+						} catch (IOException e) {
+							storeFailure.set(e);
+							throw new StorageException("Could not store data", e);
+						} finally {
+							storeDone.countDown();
+						}
+					}
+				};
+			}
+		};
+	}
+
+	private static InputStream report(String signatures, int paddingLength) {
+		StringBuilder report = new StringBuilder(PADDING);
+		for (int i = 0; i < paddingLength; i++) {
+			report.append('x');
+		}
+		report.append("\", \"signatures\": ").append(signatures).append('}');
+		return new ByteArrayInputStream(report.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void assertStoreFailed() throws InterruptedException {
+		Assert.assertTrue(storeDone.await(10, TimeUnit.SECONDS), "storing thread still waits for data");
+		Assert.assertNotNull(storeFailure.get(), "incomplete copy stored");
+	}
+
+	@Test
+	public void testFinishStoresWholeStream() throws IOException, StorageException {
+		DataStoreTee tee = new DataStoreTee(jobContext, report("[]", 3 * 1024 * 1024), new TaskResources());
+		// the processor does not have to read everything, the rest is copied by finish()
+		Assert.assertEquals(tee.read(new byte[PADDING.length()]), PADDING.length());
+
+		StoredEncoding.Stored stored = tee.finish();
+
+		Assert.assertEquals(stored.getRefId(), 42);
+		Assert.assertEquals(saved.size(), PADDING.length() + 3 * 1024 * 1024 + "\", \"signatures\": []}".length());
+	}
+
+	@Test(timeOut = 60000)
+	public void testParserFailureAbortsStoring() throws IOException, InterruptedException {
+		DataStoreTee tee = new DataStoreTee(jobContext, report("null", 100), new TaskResources());
+		try {
+			processor.process(tee);
+			Assert.fail("null signatures accepted");
+		} catch (IllegalStateException e) {
+			tee.abort();
+		}
+		assertStoreFailed();
+	}
+
+	@Test(timeOut = 60000)
+	public void testAbortReleasesStoringThreadWaitingOnFullPipe() throws IOException, InterruptedException {
+		// padding larger than the pipe, the storing thread consumes it while the parser is still reading
+		DataStoreTee tee = new DataStoreTee(jobContext, report("{\"process_id\": \"x\"}", 3 * 1024 * 1024),
+				new TaskResources());
+		try {
+			processor.process(tee);
+			Assert.fail("signatures object accepted");
+		} catch (IllegalStateException e) {
+			tee.abort();
+		}
+		assertStoreFailed();
+	}
+}
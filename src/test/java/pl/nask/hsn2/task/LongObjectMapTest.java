@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LongObjectMapTest {
+
+	@Test
+	public void testCollidingKeys() {
+		// all of them land in slot 0 of the initial table: low bits are equal or cancelled by the high half
+		long[] keys = { 0, 16, 32, (1L << 32) | 1, -1 };
+		LongObjectMap<String> map = new LongObjectMap<>();
+		for (long key : keys) {
+			map.put(key, "pid " + key);
+		}
+
+		Assert.assertEquals(map.size(), keys.length);
+		for (long key : keys) {
+			Assert.assertEquals(map.get(key), "pid " + key);
+		}
+		Assert.assertNull(map.get(48));
+
+		map.put(16, "replaced");
+		Assert.assertEquals(map.size(), keys.length);
+		Assert.assertEquals(map.get(16), "replaced");
+		Assert.assertEquals(map.get(32), "pid 32");
+	}
+
+	@Test
+	public void testGrowthPastLoadFactor() {
+		LongObjectMap<Long> map = new LongObjectMap<>();
+		int count = 5000;
+		for (int i = 0; i < count; i++) {
+			// multiples of 16 collide until the table grows
+			map.put(i * 16L, Long.valueOf(i));
+			Assert.assertEquals(map.get(i * 16L), Long.valueOf(i));
+		}
+
+		Assert.assertEquals(map.size(), count);
+		for (int i = 0; i < count; i++) {
+			Assert.assertEquals(map.get(i * 16L), Long.valueOf(i), "lost after growing: " + i);
+		}
+		Assert.assertEquals(new HashSet<>(map.values()).size(), count);
+	}
+
+	@Test
+	public void testNegativeZeroAndLargePids() {
+		long[] keys = { 0, -1, -1032, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE + 1L, 0xFFFFFFFFL,
+				Integer.MIN_VALUE };
+		LongObjectMap<Long> map = new LongObjectMap<>();
+		for (long key : keys) {
+			map.put(key, key);
+		}
+
+		Assert.assertEquals(map.size(), keys.length);
+		Set<Long> values = new HashSet<>(map.values());
+		for (long key : keys) {
+			Assert.assertEquals(map.get(key), Long.valueOf(key));
+			Assert.assertTrue(values.contains(key));
+		}
+		Assert.assertNull(map.get(1));
+		Assert.assertNull(map.get(Long.MIN_VALUE + 1));
+	}
+
+	@Test
+	public void testEmptyMap() {
+		LongObjectMap<String> map = new LongObjectMap<>();
+
+		Assert.assertEquals(map.size(), 0);
+		Assert.assertNull(map.get(0));
+		Assert.assertTrue(map.values().isEmpty());
+	}
+}
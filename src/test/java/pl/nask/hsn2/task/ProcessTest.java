@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ProcessTest {
+
+	private RatingTable ratings;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		ratings = RatingTable.read(new StringReader("antivm_vbox=1.5\nnetwork_http=0.25\ninjection_rwx=2\n"));
+	}
+
+	@Test
+	public void testScoreIsSumOfSignatureRates() {
+		Process process = new Process(7L, "antivm_vbox", ratings);
+		process.addSignature("network_http");
+		process.addSignature("injection_rwx");
+
+		Assert.assertEquals(process.getScore(), 3.75);
+		Assert.assertEquals(process.getSignatureNamesAsString(), "antivm_vbox, network_http, injection_rwx");
+	}
+
+	@Test
+	public void testRepeatedSignatureCountedOnce() {
+		Process process = new Process(7L, "network_http", ratings);
+		process.addSignature("antivm_vbox");
+		process.addSignature("network_http");
+		process.addSignature("antivm_vbox");
+
+		Assert.assertEquals(process.getScore(), 1.75);
+		Assert.assertEquals(process.getSignatureNamesAsString(), "antivm_vbox, network_http");
+	}
+
+	@Test
+	public void testUnratedSignatureOnExistingProcessSkipped() {
+		Process process = new Process(7L, "antivm_vbox", ratings);
+		process.addSignature("unknown_signature");
+
+		Assert.assertEquals(process.getScore(), 1.5);
+		Assert.assertEquals(process.getSignatureNamesAsString(), "antivm_vbox");
+	}
+}
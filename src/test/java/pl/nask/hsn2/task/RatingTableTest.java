@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pl.nask.hsn2.task;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.NoSuchElementException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RatingTableTest {
+
+	private static RatingTable read(String content) throws IOException {
+		return RatingTable.read(new StringReader(content));
+	}
+
+	@Test
+	public void testRead() throws IOException {
+		RatingTable table = read("# comment\n\nantivm_vbox = 1.5\n  # indented comment\nnetwork_http=0.25\n");
+
+		Assert.assertEquals(table.size(), 2);
+		Assert.assertEquals(table.getValue("antivm_vbox"), 1.5);
+		Assert.assertEquals(table.getValue("network_http"), 0.25);
+		Assert.assertEquals(table.getName(table.getId("network_http")), "network_http");
+		Assert.assertEquals(table.getRate(table.getId("antivm_vbox")), 1.5);
+	}
+
+	@Test
+	public void testIdsFollowFileOrder() throws IOException {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			content.append("signature_").append(i).append('=').append(i).append('\n');
+		}
+		RatingTable table = read(content.toString());
+
+		Assert.assertEquals(table.size(), 1000);
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals(table.getId("signature_" + i), i);
+			Assert.assertEquals(table.getRate(i), (double) i);
+		}
+	}
+
+	@Test
+	public void testDuplicateNameKeepsLastRate() throws IOException {
+		RatingTable table = read("a=1\nb=2\na=3\n");
+
+		Assert.assertEquals(table.size(), 2);
+		Assert.assertEquals(table.getId("a"), 0);
+		Assert.assertEquals(table.getValue("a"), 3.0);
+	}
+
+	@Test
+	public void testMissingName() throws IOException {
+		RatingTable table = read("a=1\n");
+
+		Assert.assertEquals(table.getId("b"), -1);
+		Assert.assertFalse(table.contains("b"));
+		Assert.assertTrue(table.contains("a"));
+	}
+
+	@Test(expectedExceptions = { NoSuchElementException.class })
+	public void testMissingNameValue() throws IOException {
+		read("a=1\n").getValue("b");
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		RatingTable table = read("# no ratings\n");
+
+		Assert.assertEquals(table.size(), 0);
+		Assert.assertEquals(table.getId("a"), -1);
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testLineWithoutSeparator() throws IOException {
+		read("a=1\nb 2\n");
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testLineWithoutName() throws IOException {
+		read("=2\n");
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testRateNotNumber() throws IOException {
+		read("a=high\n");
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testNegativeRate() throws IOException {
+		read("a=1\nb=-0.5\n");
+	}
+
+	@Test(expectedExceptions = { IllegalArgumentException.class })
+	public void testRateNaN() throws IOException {
+		read("a=NaN\n");
+	}
+}
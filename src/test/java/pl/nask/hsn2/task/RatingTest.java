@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pl.nask.hsn2.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class RatingTest {
+	private static final long RELOAD_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	private static final long QUIET_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+	private File directory;
+	private File file;
+	private String shippedRatings;
+
+	@BeforeClass
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("ratings").toFile();
+		file = new File(directory, "ratings.conf");
+		// ratings shipped with the service are kept, other tests rate with them
+		shippedRatings = new String(Files.readAllBytes(new File("src/main/resources/ratings.conf").toPath()),
+				StandardCharsets.UTF_8);
+		write(shippedRatings + "\ntest_signature=0.5\n");
+		Rating.configure(file);
+	}
+
+	@AfterClass
+	public void tearDown() {
+		file.delete();
+		directory.delete();
+	}
+
+	private void write(String content) throws IOException {
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static double awaitRate(String name, double expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + RELOAD_WAIT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			if (Rating.getTable().contains(name) && Rating.getValue(name) == expected) {
+				break;
+			}
+			TimeUnit.MILLISECONDS.sleep(50);
+		}
+		return Rating.getValue(name);
+	}
+
+	@Test
+	public void testConfigure() {
+		Assert.assertEquals(Rating.getValue("test_signature"), 0.5);
+	}
+
+	@Test(dependsOnMethods = "testConfigure")
+	public void testReload() throws IOException, InterruptedException {
+		RatingTable before = Rating.getTable();
+		write(shippedRatings + "\ntest_signature=0.75\n");
+
+		Assert.assertEquals(awaitRate("test_signature", 0.75), 0.75);
+		// the old snapshot is not changed by the reload
+		Assert.assertEquals(before.getValue("test_signature"), 0.5);
+	}
+
+	@Test(dependsOnMethods = "testReload")
+	public void testEmptyFileIsRejected() throws IOException, InterruptedException {
+		write("");
+		TimeUnit.MILLISECONDS.sleep(QUIET_WAIT_MILLIS);
+		Assert.assertEquals(Rating.getValue("test_signature"), 0.75);
+
+		write(shippedRatings + "\ntest_signature=1.0\n");
+		Assert.assertEquals(awaitRate("test_signature", 1.0), 1.0);
+	}
+
+	@Test(dependsOnMethods = "testEmptyFileIsRejected")
+	public void testMalformedFileIsRejected() throws IOException, InterruptedException {
+		write(shippedRatings + "\ntest_signature\n");
+		TimeUnit.MILLISECONDS.sleep(QUIET_WAIT_MILLIS);
+		Assert.assertEquals(Rating.getValue("test_signature"), 1.0);
+
+		write(shippedRatings + "\ntest_signature=0.25\n");
+		Assert.assertEquals(awaitRate("test_signature", 0.25), 0.25);
+	}
+
+	@Test(expectedExceptions = { IllegalStateException.class })
+	public void testConfigureMissingFile() {
+		Rating.configure(new File(directory, "missing.conf"));
+	}
+}
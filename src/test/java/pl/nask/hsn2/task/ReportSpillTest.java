@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ReportSpillTest {
+	private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+	private File directory;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("spill").toFile();
+		ReportSpill.configure(1000, directory);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		ReportSpill.configure(0, null);
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	private Path write(byte[] content) throws IOException {
+		Path file = new File(directory, "report.json").toPath();
+		Files.write(file, content);
+		return file;
+	}
+
+	private static InputStream openMapped(Path file, long windowSize) throws IOException {
+		return new ReportSpill.MappedFileInputStream(FileChannel.open(file, StandardOpenOption.READ), windowSize);
+	}
+
+	@Test
+	public void testThreshold() {
+		Assert.assertTrue(ReportSpill.isEnabled());
+		Assert.assertFalse(ReportSpill.shouldSpill(0));
+		Assert.assertFalse(ReportSpill.shouldSpill(1000));
+		Assert.assertTrue(ReportSpill.shouldSpill(1001));
+	}
+
+	@Test
+	public void testUnknownLengthAlwaysSpilled() {
+		Assert.assertTrue(ReportSpill.shouldSpill(-1));
+	}
+
+	@Test
+	public void testDisabled() {
+		ReportSpill.configure(0, null);
+
+		Assert.assertFalse(ReportSpill.isEnabled());
+	}
+
+	@Test
+	public void testSpillCopiesReportAndCloseDeletesFile() throws IOException {
+		byte[] content = randomBytes(5000);
+		File spillFile;
+		try (ReportSpill spill = ReportSpill.spill(new ByteArrayInputStream(content))) {
+			Assert.assertEquals(spill.length(), content.length);
+			File[] files = directory.listFiles();
+			Assert.assertEquals(files.length, 1);
+			spillFile = files[0];
+			try (InputStream mapped = spill.openMapped()) {
+				Assert.assertEquals(readAll(mapped, 777), content);
+			}
+		}
+		Assert.assertFalse(spillFile.exists());
+	}
+
+	@Test
+	public void testBlockReadsAcrossWindows() throws IOException {
+		byte[] content = randomBytes(10000);
+		Path file = write(content);
+
+		// reads of 777 bytes do not line up with 1024 byte windows, every window boundary falls inside a read
+		try (InputStream in = openMapped(file, 1024)) {
+			Assert.assertEquals(readAll(in, 777), content);
+		}
+		// reads larger than a window
+		try (InputStream in = openMapped(file, 1024)) {
+			Assert.assertEquals(readAll(in, 3000), content);
+		}
+	}
+
+	@Test
+	public void testByteReadsAcrossWindows() throws IOException {
+		byte[] content = randomBytes(4096);
+		Path file = write(content);
+
+		try (InputStream in = openMapped(file, 1024)) {
+			for (int i = 0; i < content.length; i++) {
+				Assert.assertEquals(in.read(), content[i] & 0xff, "byte " + i);
+			}
+			Assert.assertEquals(in.read(), -1);
+			Assert.assertEquals(in.read(new byte[10], 0, 10), -1);
+		}
+	}
+
+	@Test
+	public void testEmptyFile() throws IOException {
+		Path file = write(new byte[0]);
+
+		try (InputStream in = openMapped(file, 1024)) {
+			Assert.assertEquals(in.read(), -1);
+			Assert.assertEquals(in.read(new byte[10], 0, 10), -1);
+			Assert.assertEquals(in.read(new byte[10], 0, 0), 0);
+		}
+	}
+
+	@Test
+	public void testReadAcrossReportWindowBoundary() throws IOException {
+		Path file = new File(directory, "large.json").toPath();
+		byte[] marker = randomBytes(64);
+		// sparse file, only the bytes around the boundary of the first 64 MB window are written
+		try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+			out.setLength(MAP_WINDOW + 4096);
+			out.seek(MAP_WINDOW - marker.length / 2);
+			out.write(marker);
+		}
+
+		try (InputStream in = openMapped(file, MAP_WINDOW)) {
+			long toSkip = MAP_WINDOW - marker.length;
+			while (toSkip > 0) {
+				toSkip -= in.skip(toSkip);
+			}
+			byte[] around = new byte[2 * marker.length];
+			int read = 0;
+			while (read < around.length) {
+				read += in.read(around, read, around.length - read);
+			}
+			byte[] expected = new byte[2 * marker.length];
+			System.arraycopy(marker, 0, expected, marker.length / 2, marker.length);
+			Assert.assertEquals(around, expected);
+			Assert.assertEquals(readAll(in, 1000).length, 4096 - marker.length);
+		}
+	}
+
+	private static byte[] readAll(InputStream in, int chunk) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[chunk];
+		for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+			Assert.assertTrue(n > 0 && n <= chunk);
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
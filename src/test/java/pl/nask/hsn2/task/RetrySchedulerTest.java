@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.connector.CuckooCluster;
+import pl.nask.hsn2.connector.CuckooRESTConnector;
+
+public class RetrySchedulerTest {
+	private static final String NODE_A = "http://cuckoo-a:8090";
+	private static final String NODE_B = "http://cuckoo-b:8090";
+	private static final int THRESHOLD = 3;
+	private static final long OPEN_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+	private RetryScheduler.Breaker breaker;
+	private long now;
+
+	@BeforeMethod
+	public void setUp() throws InterruptedException {
+		final CountDownLatch refreshed = new CountDownLatch(2);
+		new MockUp<CuckooRESTConnector>() {
+			@Mock
+			JSONObject getStatus() {
+				refreshed.countDown();
+				return new JSONObject("{\"tasks\": {\"pending\": 0, \"running\": 0}}");
+			}
+		};
+		CuckooCluster.configure(Arrays.asList(NODE_A, NODE_B), TimeUnit.HOURS.toSeconds(1), 1);
+		// the first refresh runs at once, it must not reset the state set by the test
+		Assert.assertTrue(refreshed.await(10, TimeUnit.SECONDS));
+		TimeUnit.MILLISECONDS.sleep(50);
+		RetryScheduler.configure(THRESHOLD, TimeUnit.MILLISECONDS.toSeconds(OPEN_MILLIS));
+		breaker = RetryScheduler.getBreaker(NODE_A);
+		now = System.currentTimeMillis();
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		RetryScheduler.configure(RetryScheduler.DEFAULT_FAILURE_THRESHOLD, RetryScheduler.DEFAULT_OPEN_SECS);
+		CuckooCluster.configure(Collections.<String> emptyList(), TimeUnit.HOURS.toSeconds(1),
+				CuckooCluster.DEFAULT_QUARANTINE_SECS);
+	}
+
+	private void openCircuit() {
+		for (int i = 0; i < THRESHOLD; i++) {
+			Assert.assertTrue(breaker.allowRequest(now));
+			breaker.failure(now);
+		}
+	}
+
+	private static void assertNodeSkipped() {
+		for (int i = 0; i < 4; i++) {
+			Assert.assertEquals(CuckooCluster.selectNode(), NODE_B);
+		}
+	}
+
+	@Test
+	public void testCircuitStaysClosedBelowThreshold() {
+		for (int i = 0; i < THRESHOLD - 1; i++) {
+			breaker.failure(now);
+		}
+		breaker.success();
+		breaker.failure(now);
+
+		Assert.assertTrue(breaker.allowRequest(now));
+		Assert.assertTrue(CuckooCluster.hasHealthyNode());
+	}
+
+	@Test
+	public void testOpenCircuitFailsFastAndQuarantinesNode() {
+		openCircuit();
+
+		Assert.assertFalse(breaker.allowRequest(now + 1));
+		Assert.assertFalse(breaker.allowRequest(now + OPEN_MILLIS - 1));
+		assertNodeSkipped();
+	}
+
+	@Test
+	public void testHalfOpenCircuitLetsOneProbeThrough() {
+		openCircuit();
+
+		Assert.assertTrue(breaker.allowRequest(now + OPEN_MILLIS), "no probe");
+		Assert.assertFalse(breaker.allowRequest(now + OPEN_MILLIS), "second probe");
+		// tasks are not sent to the node while the probe runs
+		assertNodeSkipped();
+	}
+
+	@Test
+	public void testSuccessfulProbeClosesCircuit() {
+		openCircuit();
+		Assert.assertTrue(breaker.allowRequest(now + OPEN_MILLIS));
+
+		breaker.success();
+
+		Assert.assertTrue(breaker.allowRequest(now + OPEN_MILLIS));
+		Assert.assertTrue(breaker.allowRequest(now + OPEN_MILLIS));
+		Assert.assertTrue(Arrays.asList(CuckooCluster.selectNode(), CuckooCluster.selectNode()).contains(NODE_A),
+				"node still quarantined");
+	}
+
+	@Test
+	public void testFailedProbeReopensCircuitForLonger() {
+		openCircuit();
+		long probeAt = now + OPEN_MILLIS;
+		Assert.assertTrue(breaker.allowRequest(probeAt));
+
+		breaker.failure(probeAt);
+
+		Assert.assertFalse(breaker.allowRequest(probeAt + OPEN_MILLIS));
+		Assert.assertFalse(breaker.allowRequest(probeAt + 2 * OPEN_MILLIS - 1));
+		assertNodeSkipped();
+		Assert.assertTrue(breaker.allowRequest(probeAt + 2 * OPEN_MILLIS));
+	}
+
+	@Test
+	public void testBreakersAreKeptPerNode() {
+		openCircuit();
+
+		Assert.assertTrue(RetryScheduler.allowRequest(NODE_B));
+		Assert.assertTrue(CuckooCluster.hasHealthyNode());
+	}
+}
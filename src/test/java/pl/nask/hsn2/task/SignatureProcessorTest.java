@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SignatureProcessorTest {
+
+	private SignatureProcessor processor;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		processor = new SignatureProcessor(RatingTable.read(new StringReader(
+				"antivm_vbox=1.5\nnetwork_http=0.25\ninjection_rwx=2\nraw_socket=0.5\n")), 3);
+	}
+
+	private void process(String signatures) throws IOException {
+		String report = "{\"info\": {\"id\": 1}, \"signatures\": [" + signatures + "]}";
+		processor.process(new ByteArrayInputStream(report.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static String signature(String name, String data) {
+		return "{\"name\": \"" + name + "\", \"severity\": 2, \"data\": [" + data + "]}";
+	}
+
+	@Test
+	public void testSignaturesOnOnePidAreSummed() throws IOException {
+		process(signature("antivm_vbox", "{\"process_id\": 1032}")
+				+ "," + signature("network_http", "{\"process_id\": 1032}, {\"process_id\": 1032}")
+				+ "," + signature("injection_rwx", "{\"process_id\": 1032, \"process_name\": \"a.exe\"}")
+				+ "," + signature("antivm_vbox", "{\"process_id\": 1032}"));
+
+		Process process = processor.getMaxRateProcess();
+		Assert.assertEquals(process.getId(), Long.valueOf(1032));
+		Assert.assertEquals(process.getScore(), 3.75);
+		Assert.assertEquals(process.getSignatureNamesAsString(), "antivm_vbox, network_http, injection_rwx");
+	}
+
+	@Test
+	public void testUnratedSignatureSkipped() throws IOException {
+		process(signature("unknown_signature", "{\"process_id\": 1032}")
+				+ "," + signature("network_http", "{\"process_id\": 1032}")
+				+ "," + signature("unknown_signature", "{\"process_id\": 1032}")
+				+ "," + signature("raw_socket", "{\"process_id\": 1032}"));
+
+		Process process = processor.getMaxRateProcess();
+		Assert.assertEquals(process.getScore(), 0.75);
+		Assert.assertEquals(process.getSignatureNamesAsString(), "network_http, raw_socket");
+	}
+
+	@Test
+	public void testOnlyUnratedSignaturesGiveNoProcess() throws IOException {
+		process(signature("unknown_signature", "{\"process_id\": 1032}"));
+
+		Assert.assertNull(processor.getMaxRateProcess());
+	}
+
+	@Test
+	public void testTopProcessesAcrossPids() throws IOException {
+		process(signature("network_http",
+				"{\"process_id\": 1}, {\"process_id\": 2}, {\"process_id\": 3}, {\"process_id\": 4}")
+				+ "," + signature("raw_socket", "{\"process_id\": 4}, {\"process_id\": 2}")
+				+ "," + signature("antivm_vbox", "{\"process_id\": 3}")
+				+ "," + signature("injection_rwx", "{\"process_id\": 1}")
+				+ "," + signature("raw_socket", "{\"file\": \"a.exe\"}"));
+
+		List<Long> pids = new ArrayList<>();
+		for (Process process : processor.getTopProcesses()) {
+			pids.add(process.getId());
+		}
+		Assert.assertEquals(pids, Arrays.asList(1L, 3L, 2L));
+		Assert.assertEquals(processor.getProcessCount(), 4);
+		Assert.assertEquals(processor.getMaxRateProcess().getScore(), 2.25);
+		Assert.assertEquals(processor.getTotalScore(), 2.75);
+	}
+
+	@Test
+	public void testDataWithoutPidIsAdditionalScore() throws IOException {
+		process(signature("raw_socket", "{\"file\": \"c:\\\\a.exe\"}, {\"process_id\": 88}")
+				+ "," + "{\"data\": [{\"process_id\": 88}], \"name\": \"network_http\"}");
+
+		Assert.assertEquals(processor.getMaxRateProcess().getScore(), 0.75);
+		Assert.assertEquals(processor.getAdditionalScores().size(), 1);
+		Assert.assertEquals(processor.getAdditionalScores().get("raw_socket"), 0.5);
+	}
+}
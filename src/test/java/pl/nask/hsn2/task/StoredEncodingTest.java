@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import mockit.Delegate;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.NullInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import pl.nask.hsn2.StorageException;
+import pl.nask.hsn2.TaskContext;
+
+public class StoredEncodingTest {
+	private static final long FOUR_GIB = 1L << 32;
+
+	@Mocked
+	TaskContext jobContext;
+
+	@AfterMethod
+	public void tearDown() {
+		StoredEncoding.configure(StoredEncoding.NONE, StoredEncoding.DEFAULT_LEVEL);
+	}
+
+	private static byte[] report() {
+		StringBuilder report = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			report.append("{\"name\": \"signature_").append(i % 37).append("\", \"process_id\": ").append(i)
+					.append("}\n");
+		}
+		return report.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] encode(byte[] data, String codec) throws IOException {
+		try (InputStream encoded = StoredEncoding.encode(new ByteArrayInputStream(data), codec, 6)) {
+			return IOUtils.toByteArray(encoded);
+		}
+	}
+
+	@Test
+	public void testGzipRoundTrip() throws IOException {
+		byte[] data = report();
+		byte[] encoded = encode(data, StoredEncoding.GZIP);
+
+		Assert.assertTrue(encoded.length < data.length);
+		Assert.assertEquals(IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(encoded))), data);
+	}
+
+	@Test
+	public void testGzipHeader() throws IOException {
+		byte[] encoded = encode(report(), StoredEncoding.GZIP);
+
+		// magic, deflate, no flags, no time, no extra flags, unknown OS
+		byte[] expected = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+		Assert.assertEquals(Arrays.copyOf(encoded, 10), expected);
+	}
+
+	@Test
+	public void testDeflateRoundTrip() throws IOException {
+		byte[] data = report();
+		byte[] encoded = encode(data, StoredEncoding.DEFLATE);
+
+		Assert.assertTrue(encoded.length < data.length);
+		Assert.assertEquals(IOUtils.toByteArray(new InflaterInputStream(new ByteArrayInputStream(encoded))), data);
+	}
+
+	@Test
+	public void testEmptyInput() throws IOException {
+		byte[] gzip = encode(new byte[0], StoredEncoding.GZIP);
+		byte[] deflate = encode(new byte[0], StoredEncoding.DEFLATE);
+
+		Assert.assertTrue(gzip.length > 0);
+		Assert.assertEquals(IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzip))).length, 0);
+		Assert.assertEquals(IOUtils.toByteArray(new InflaterInputStream(new ByteArrayInputStream(deflate))).length, 0);
+	}
+
+	@Test
+	public void testNoEncoding() throws IOException {
+		InputStream source = new ByteArrayInputStream(report());
+
+		Assert.assertSame(StoredEncoding.encode(source, null, 6), source);
+	}
+
+	/**
+	 * ISIZE in the gzip trailer is the input length modulo 2^32, GZIPInputStream checks it against the bytes it
+	 * inflated (and the CRC32 of them).
+	 */
+	@Test
+	public void testGzipLongerThanFourGiB() throws IOException {
+		long length = FOUR_GIB + 1000;
+		InputStream encoded = StoredEncoding.encode(new NullInputStream(length), StoredEncoding.GZIP, 1);
+
+		try (InputStream decoded = new GZIPInputStream(encoded, 64 * 1024)) {
+			Assert.assertEquals(IOUtils.copyLarge(decoded, NullOutputStream.NULL_OUTPUT_STREAM), length);
+		}
+	}
+
+	@Test
+	public void testSaveReturnsEncodingApplied() throws StorageException, IOException {
+		final byte[] data = report();
+		final ByteArrayOutputStream saved = new ByteArrayOutputStream();
+		new NonStrictExpectations() {
+			{
+				jobContext.saveInDataStore((InputStream) any);
+				result = new Delegate<Long>() {
+					@SuppressWarnings("unused")
+					long saveInDataStore(InputStream stream) throws IOException {
+						// encoding reconfigured while the data is being stored
+						StoredEncoding.configure(StoredEncoding.DEFLATE, 6);
+						IOUtils.copy(stream, saved);
+						return 42;
+					}
+				};
+			}
+		};
+		StoredEncoding.configure(StoredEncoding.GZIP, 6);
+
+		StoredEncoding.Stored stored = StoredEncoding.save(jobContext, new ByteArrayInputStream(data),
+				TaskMetrics.REPORT, new TaskResources());
+
+		Assert.assertEquals(stored.getRefId(), 42);
+		Assert.assertEquals(stored.getEncoding(), StoredEncoding.GZIP);
+		Assert.assertEquals(IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(saved.toByteArray()))),
+				data);
+	}
+
+	@Test
+	public void testSaveWithoutEncoding() throws StorageException, IOException {
+		new NonStrictExpectations() {
+			{
+				jobContext.saveInDataStore((InputStream) any);
+				result = 7L;
+			}
+		};
+
+		StoredEncoding.Stored stored = StoredEncoding.save(jobContext, new ByteArrayInputStream(report()),
+				TaskMetrics.REPORT, new TaskResources());
+
+		Assert.assertEquals(stored.getRefId(), 7);
+		Assert.assertNull(stored.getEncoding());
+	}
+}
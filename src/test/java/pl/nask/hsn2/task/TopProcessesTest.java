@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TopProcessesTest {
+
+	private RatingTable ratings;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		// ids 0..3
+		ratings = RatingTable.read(new StringReader("s0=0.25\ns1=0.5\ns2=1\ns3=2\n"));
+	}
+
+	private Process process(long pid, int... signatureIds) {
+		Process process = new Process(pid, ratings);
+		for (int id : signatureIds) {
+			process.addSignature(id);
+		}
+		return process;
+	}
+
+	private static List<Long> pids(TopProcesses top) {
+		List<Long> pids = new ArrayList<>();
+		for (Process process : top.get()) {
+			pids.add(process.getId());
+		}
+		return pids;
+	}
+
+	@Test
+	public void testEmpty() {
+		TopProcesses top = new TopProcesses(3);
+
+		Assert.assertNull(top.first());
+		Assert.assertTrue(top.get().isEmpty());
+	}
+
+	@Test
+	public void testKeepsOnlyKHighest() {
+		TopProcesses top = new TopProcesses(3);
+		top.update(process(1, 0));
+		top.update(process(2, 3));
+		top.update(process(3, 1));
+		top.update(process(4, 2, 3));
+		top.update(process(5, 0, 1));
+		top.update(process(6, 2));
+
+		Assert.assertEquals(pids(top), Arrays.asList(4L, 2L, 6L));
+		Assert.assertEquals(top.first().getScore(), 3.0);
+	}
+
+	@Test
+	public void testTiesBrokenByPid() {
+		TopProcesses top = new TopProcesses(2);
+		top.update(process(9, 2));
+		top.update(process(5, 2));
+		top.update(process(7, 2));
+		top.update(process(2, 2));
+
+		Assert.assertEquals(pids(top), Arrays.asList(2L, 5L));
+	}
+
+	@Test
+	public void testUpdateMovesProcessUp() {
+		TopProcesses top = new TopProcesses(3);
+		Process low = process(1, 0);
+		top.update(low);
+		top.update(process(2, 1));
+		top.update(process(3, 2));
+		Assert.assertEquals(pids(top), Arrays.asList(3L, 2L, 1L));
+
+		low.addSignature(3);
+		top.update(low);
+
+		Assert.assertEquals(pids(top), Arrays.asList(1L, 3L, 2L));
+		Assert.assertSame(top.first(), low);
+		Assert.assertEquals(top.get().size(), 3);
+	}
+
+	@Test
+	public void testUpdateBringsProcessBackToTop() {
+		TopProcesses top = new TopProcesses(2);
+		Process outside = process(8, 0);
+		top.update(outside);
+		top.update(process(1, 1));
+		top.update(process(2, 2));
+		Assert.assertEquals(pids(top), Arrays.asList(2L, 1L));
+
+		outside.addSignature(1);
+		top.update(outside);
+		Assert.assertEquals(pids(top), Arrays.asList(2L, 8L));
+
+		outside.addSignature(2);
+		top.update(outside);
+		Assert.assertEquals(pids(top), Arrays.asList(8L, 2L));
+	}
+
+	@Test
+	public void testEqualScoreUpdateOrderedByPid() {
+		TopProcesses top = new TopProcesses(2);
+		top.update(process(3, 2));
+		top.update(process(4, 1));
+		Process other = process(1, 1);
+		top.update(other);
+		Assert.assertEquals(pids(top), Arrays.asList(3L, 1L));
+
+		other.addSignature(0);
+		other.addSignature(3);
+		top.update(other);
+		Assert.assertEquals(pids(top), Arrays.asList(1L, 3L));
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pl.nask.hsn2.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class UrlSubmissionsTest {
+	private static final AtomicInteger KEYS = new AtomicInteger();
+
+	@AfterMethod
+	public void tearDown() {
+		UrlSubmissions.configure(UrlSubmissions.DEFAULT_WINDOW_SECS);
+	}
+
+	/**
+	 * Flights are shared by all tests, so every test uses its own URL.
+	 */
+	private static String newKey() {
+		return "http://example.com/" + KEYS.incrementAndGet() + "|||";
+	}
+
+	private static VerdictCache.Verdict verdict(String classification) {
+		Map<String, String> attributes = new HashMap<>();
+		attributes.put("cuckoo_classification", classification);
+		return new VerdictCache.Verdict(1, attributes, new HashMap<String, Long>());
+	}
+
+	@Test
+	public void testFirstTaskLeadsOthersFollow() {
+		String key = newKey();
+
+		UrlSubmissions.Ticket first = UrlSubmissions.join(key);
+		UrlSubmissions.Ticket second = UrlSubmissions.join(key);
+		UrlSubmissions.Ticket other = UrlSubmissions.join(newKey());
+
+		Assert.assertTrue(first.isLeader());
+		Assert.assertFalse(second.isLeader());
+		Assert.assertSame(second.getFlight(), first.getFlight());
+		Assert.assertTrue(other.isLeader(), "different URL shares the flight");
+	}
+
+	@Test
+	public void testRoleDoesNotDependOnThread() throws InterruptedException {
+		final String key = newKey();
+		UrlSubmissions.Ticket leader = UrlSubmissions.join(key);
+		final List<UrlSubmissions.Ticket> joined = Collections.synchronizedList(new ArrayList<UrlSubmissions.Ticket>());
+		// the same thread may run many tasks, e.g. one after another on a pool thread
+		Thread pooled = new Thread() {
+			@Override
+			public void run() {
+				joined.add(UrlSubmissions.join(key));
+				joined.add(UrlSubmissions.join(key));
+			}
+		};
+		pooled.start();
+		pooled.join();
+
+		Assert.assertTrue(leader.isLeader());
+		Assert.assertFalse(joined.get(0).isLeader());
+		Assert.assertFalse(joined.get(1).isLeader());
+	}
+
+	@Test(timeOut = 10000)
+	public void testVerdictIsSharedAndKeptInWindow() throws InterruptedException {
+		String key = newKey();
+		UrlSubmissions.Ticket leader = UrlSubmissions.join(key);
+		UrlSubmissions.Ticket follower = UrlSubmissions.join(key);
+		VerdictCache.Verdict verdict = verdict("malicious");
+
+		leader.getFlight().land(verdict);
+
+		Assert.assertSame(follower.getFlight().await(), verdict);
+		UrlSubmissions.Ticket late = UrlSubmissions.join(key);
+		Assert.assertFalse(late.isLeader(), "verdict not kept after landing");
+		Assert.assertSame(late.getFlight().await(), verdict);
+	}
+
+	@Test
+	public void testVerdictNotKeptWithoutWindow() {
+		UrlSubmissions.configure(0);
+		String key = newKey();
+		UrlSubmissions.join(key).getFlight().land(verdict("benign"));
+
+		Assert.assertTrue(UrlSubmissions.join(key).isLeader());
+	}
+
+	@Test(timeOut = 30000)
+	public void testFollowersElectNewLeaderAfterFailedFlight() throws InterruptedException {
+		final String key = newKey();
+		UrlSubmissions.Ticket leader = UrlSubmissions.join(key);
+		final int followers = 5;
+		final CountDownLatch waiting = new CountDownLatch(followers);
+		final AtomicInteger newLeaders = new AtomicInteger();
+		final AtomicInteger shared = new AtomicInteger();
+		final VerdictCache.Verdict verdict = verdict("suspicious");
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < followers; i++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						// loop of CuckooTask: follow until there is a verdict or this task leads
+						boolean first = true;
+						while (true) {
+							UrlSubmissions.Ticket ticket = UrlSubmissions.join(key);
+							if (ticket.isLeader()) {
+								newLeaders.incrementAndGet();
+								TimeUnit.MILLISECONDS.sleep(100);
+								ticket.getFlight().land(verdict);
+								return;
+							}
+							if (first) {
+								first = false;
+								waiting.countDown();
+							}
+							if (ticket.getFlight().await() != null) {
+								shared.incrementAndGet();
+								return;
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		waiting.await();
+
+		// analysis failed, no verdict
+		leader.getFlight().land(null);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Assert.assertEquals(newLeaders.get(), 1);
+		Assert.assertEquals(shared.get(), followers - 1);
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) NASK, NCSC
+ *
+ * This file is part of HoneySpider Network 2.1.
+ *
+ * This is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pl.nask.hsn2.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class VerdictCacheTest {
+	private File file;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		file = File.createTempFile("verdict-cache", ".json");
+		Assert.assertTrue(file.delete());
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		file.delete();
+	}
+
+	private static VerdictCache.Verdict verdict(long jobId, String classification) {
+		Map<String, String> attributes = Collections.singletonMap("cuckoo_classification", classification);
+		Map<String, Long> references = Collections.singletonMap("cuckoo_report_json", 5L);
+		return new VerdictCache.Verdict(jobId, attributes, references);
+	}
+
+	@Test
+	public void testExpiredVerdictIsRemoved() throws InterruptedException {
+		VerdictCache cache = new VerdictCache(file, 50, TimeUnit.MILLISECONDS, 10);
+		cache.put("a", verdict(1, "benign"));
+		Assert.assertNotNull(cache.get("a"));
+
+		TimeUnit.MILLISECONDS.sleep(100);
+		Assert.assertNull(cache.get("a"));
+		Assert.assertEquals(cache.size(), 0);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		VerdictCache cache = new VerdictCache(file, 1, TimeUnit.HOURS, 2);
+		cache.put("a", verdict(1, "benign"));
+		cache.put("b", verdict(1, "suspicious"));
+		Assert.assertNotNull(cache.get("a"));
+		cache.put("c", verdict(1, "malicious"));
+
+		Assert.assertEquals(cache.size(), 2);
+		Assert.assertNotNull(cache.get("a"));
+		Assert.assertNull(cache.get("b"));
+		Assert.assertNotNull(cache.get("c"));
+	}
+
+	@Test
+	public void testSaveAndLoad() {
+		VerdictCache cache = new VerdictCache(file, 1, TimeUnit.HOURS, 10);
+		cache.put("a", verdict(7, "malicious"));
+		cache.save();
+		Assert.assertTrue(file.isFile());
+
+		VerdictCache loaded = new VerdictCache(file, 1, TimeUnit.HOURS, 10);
+		VerdictCache.Verdict verdict = loaded.get("a");
+		Assert.assertNotNull(verdict);
+		Assert.assertEquals(verdict.getJobId(), 7);
+		Assert.assertEquals(verdict.getAttributes().get("cuckoo_classification"), "malicious");
+		Assert.assertEquals(verdict.getReferences().get("cuckoo_report_json"), Long.valueOf(5));
+	}
+
+	@Test
+	public void testExpiredVerdictIsNotLoaded() throws InterruptedException {
+		VerdictCache cache = new VerdictCache(file, 50, TimeUnit.MILLISECONDS, 10);
+		cache.put("a", verdict(1, "benign"));
+		cache.save();
+
+		TimeUnit.MILLISECONDS.sleep(100);
+		Assert.assertEquals(new VerdictCache(file, 50, TimeUnit.MILLISECONDS, 10).size(), 0);
+	}
+
+	@Test
+	public void testKeyDependsOnParameters() {
+		Assert.assertEquals(VerdictCache.key("hash", null, null, "10"), VerdictCache.key("hash", "", "", "10"));
+		Assert.assertNotEquals(VerdictCache.key("hash", "exe", null, "10"), VerdictCache.key("hash", "dll", null, "10"));
+	}
+}